@@ -0,0 +1,77 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/** Class drawing random subsets of the attributes of a dataset, the random subspaces of a LinearPerceptronEnsemble
+ *  Each subset is drawn by a partial Fisher-Yates shuffle of a permutation of the non-class attributes kept between
+ *  draws, so drawing k attributes costs k random numbers and swaps however many attributes there are, every attribute
+ *  is equally likely to be drawn, and the permutation is allocated once however many subsets are drawn.
+ *  As elsewhere, the class attribute is taken to be the last attribute. A sampler is not safe to use from several
+ *  threads at once.
+ */
+public class AttributeSampler {
+
+    private final int numAttributes;
+    private final int[] order;
+    private final boolean[] drawn;
+
+    /** The proportion of the attributes below which a selection is sorted rather than read off by a scan */
+    private static final double SORT_THRESHOLD = 0.05;
+
+    /** Creates a sampler over the attributes of a dataset
+     *
+     * @param numAttributes the number of attributes in the dataset, including the class attribute
+     */
+    public AttributeSampler(int numAttributes){
+        this.numAttributes = numAttributes - 1;
+        this.order = new int[this.numAttributes];
+        for (int i = 0; i < this.numAttributes; i++){
+            this.order[i] = i;
+        }
+        this.drawn = new boolean[this.numAttributes];
+    }
+
+    /** Selects a random subset of the non-class attributes. The number not selected is rounded down, as it always has
+     * been, and whichever of the selected or non-selected attributes is fewer is drawn. A small selection is sorted,
+     * any other is read off in order by marking the attributes drawn and scanning them once.
+     *
+     * @param proportion the proportion of attributes to select
+     * @param rnd the random number generator to draw the attributes from
+     * @return the indices of the selected attributes, in ascending order, followed by the class attribute
+     */
+    public int[] select(double proportion, Random rnd){
+        int numToDrop = Math.max(0, Math.min(this.numAttributes, (int)(this.numAttributes*(1-proportion))));
+        int numKept = this.numAttributes - numToDrop;
+        boolean drawKept = numKept <= numToDrop;
+        int numToDraw = drawKept ? numKept : numToDrop;
+
+        for (int i = 0; i < numToDraw; i++){
+            int j = i + rnd.nextInt(this.numAttributes - i);
+            int swap = this.order[i];
+            this.order[i] = this.order[j];
+            this.order[j] = swap;
+        }
+
+        int[] kept;
+        if (drawKept && numKept < SORT_THRESHOLD*this.numAttributes){
+            kept = Arrays.copyOf(this.order, numKept + 1);
+            Arrays.sort(kept, 0, numKept);
+        }
+        else {
+            for (int i = 0; i < numToDraw; i++){
+                this.drawn[this.order[i]] = true;
+            }
+            kept = new int[numKept + 1];
+            for (int attr = 0, k = 0; attr < this.numAttributes; attr++){
+                if (this.drawn[attr] == drawKept){
+                    kept[k++] = attr;
+                }
+            }
+            for (int i = 0; i < numToDraw; i++){
+                this.drawn[this.order[i]] = false;
+            }
+        }
+        kept[numKept] = this.numAttributes;
+        return kept;
+    }
+
+}
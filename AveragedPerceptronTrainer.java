@@ -0,0 +1,159 @@
+/** Class carrying out the on-line learning rule for a linear perceptron, returning a more stable weight vector than
+ *  the last one visited. On data that is not linearly separable the on-line rule keeps oscillating, so the final
+ *  weight vector depends on whichever rows happened to be seen last.
+ *  AVERAGED returns the average of the weight vectors held after every row of every epoch. The average is kept
+ *  lazily: alongside the weights w, a second vector u gathers each update scaled by the number of rows seen when it
+ *  was made, and the average is w - u/c at the end, so averaging costs one extra update per mistake rather than a
+ *  pass over every weight per row.
+ *  POCKET returns the weight vector that classified the longest run of consecutive rows correctly, copied into the
+ *  pocket only when a run breaks having beaten the best run so far.
+ *  Both converge to a good model in a few epochs, so they are best paired with a small maximum number of iterations
+ *  or a StoppingPolicy with a plateau.
+ */
+public class AveragedPerceptronTrainer {
+
+    /** The weight vector returned from training */
+    public enum Mode {
+        STANDARD, AVERAGED, POCKET
+    }
+
+    private Mode mode = Mode.AVERAGED;
+    private int maxIterations = 1000;
+    private double learningRate = 1.0;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private EpochListener epochListener;
+
+    /** @param mode the weight vector returned from training */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /** @param maxIterations the maximum number of epochs to run */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /** @param learningRate the learning rate applied to the weight change */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /** @param stoppingPolicy the policy deciding when training stops before the maximum number of iterations */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** @param epochListener the listener the metrics of each epoch are reported to, or null */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** Trains the weight vector on a dense snapshot of the data
+     *
+     * @param data the dataset to train on
+     * @param weightVector the initial weight vector, one weight per column plus the bias, updated in place
+     * @return the averaged or pocket weight vector, as set by the mode
+     */
+    public double[] train(DenseInstances data, double[] weightVector){
+        double[] values = data.values();
+        int numColumns = data.numColumns();
+        return train(new Rows() {
+            @Override
+            public double dot(int row, double[] weights){
+                return VectorOps.dot(weights, 0, values, data.offset(row), numColumns);
+            }
+            @Override
+            public void axpy(double alpha, int row, double[] weights, int length){
+                VectorOps.axpy(alpha, values, data.offset(row), weights, 0, length);
+            }
+        }, data.numRows(), data.classValues(), weightVector);
+    }
+
+    /** Trains the weight vector on a sparse snapshot of the data, touching only the non-zero values of each row
+     *
+     * @param data the dataset to train on
+     * @param weightVector the initial weight vector, one weight per column plus the bias, updated in place
+     * @return the averaged or pocket weight vector, as set by the mode
+     */
+    public double[] train(SparseInstances data, double[] weightVector){
+        return train(new Rows() {
+            @Override
+            public double dot(int row, double[] weights){
+                return data.dot(row, weights);
+            }
+            @Override
+            public void axpy(double alpha, int row, double[] weights, int length){
+                data.axpy(alpha, row, weights, length);
+            }
+        }, data.numRows(), data.classValues(), weightVector);
+    }
+
+    /** Runs the on-line learning rule, keeping the average or the pocket alongside the weights
+     *
+     * @param rows the rows to train on
+     * @param numRows the number of rows
+     * @param classValues the class value of each row
+     * @param weightVector the initial weight vector, updated in place
+     * @return the averaged or pocket weight vector, as set by the mode
+     */
+    private double[] train(Rows rows, int numRows, double[] classValues, double[] weightVector){
+        int numWeights = weightVector.length - 1;
+        double[] scaledUpdates = this.mode == Mode.AVERAGED ? new double[weightVector.length] : null;
+        double[] pocket = this.mode == Mode.POCKET ? weightVector.clone() : null;
+        long seen = 1;
+        long run = 0;
+        long bestRun = 0;
+        StoppingPolicy.Run progress = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int i = 0; i < numRows; i++){
+                double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+                double localError = target - java.lang.Math.signum(rows.dot(i, weightVector));
+                double rate = 0.5*this.learningRate*localError;
+
+                if (rate == 0.0){
+                    run++;
+                }
+                else {
+                    errors++;
+                    loss += localError*localError;
+                    if (pocket != null && run > bestRun){
+                        bestRun = run;
+                        System.arraycopy(weightVector, 0, pocket, 0, weightVector.length);
+                    }
+                    run = 0;
+
+                    rows.axpy(rate, i, weightVector, numWeights);
+                    if (scaledUpdates != null){
+                        rows.axpy(rate*seen, i, scaledUpdates, numWeights);
+                    }
+                }
+                seen++;
+            }
+
+            if (progress.epochFinished(errors, loss, weightVector)){
+                break;
+            }
+        }
+
+        if (scaledUpdates != null){
+            VectorOps.axpy(-1.0/seen, scaledUpdates, 0, weightVector, 0, numWeights);
+        }
+        else if (pocket != null && run <= bestRun){
+            System.arraycopy(pocket, 0, weightVector, 0, weightVector.length);
+        }
+        return weightVector;
+    }
+
+    /** Interface for the operations the learning rule needs on the rows of a dense or sparse snapshot */
+    private interface Rows {
+
+        double dot(int row, double[] weights);
+
+        void axpy(double alpha, int row, double[] weights, int length);
+    }
+
+}
@@ -0,0 +1,73 @@
+/** Interface for a classifier that predicts the class of a batch of rows stored in a row-major array, so the rows
+ *  can be scored and evaluated without being wrapped in Instance objects
+ */
+@FunctionalInterface
+public interface BatchClassifier {
+
+    /** Predicts the class of a batch of rows stored part way through a row-major array, so a block of a larger
+     * snapshot can be scored in place without being copied out
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    void classifyBatch(double[] rows, int offset, int nRows, int nCols, double[] out);
+
+    /** Predicts the class of a batch of rows stored from the start of a row-major array
+     *
+     * @param rows the attribute values of each row, laid out in the same order as the training data
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    default void classifyBatch(double[] rows, int nRows, int nCols, double[] out){
+        classifyBatch(rows, 0, nRows, nCols, out);
+    }
+
+    /** Scores a batch of rows stored part way through a row-major array for a classifier of two classes, writing the
+     * confidence that each row is of class 1 as a value in [0, 1], with higher values more likely to be of class 1.
+     * The scores rank the rows, as the AUC is found from. A classifier without a finer score uses its predicted
+     * classes, which is what this default does.
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to score
+     * @param nCols the number of values stored for each row
+     * @param out the array the scores are written to
+     */
+    default void scoreBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        classifyBatch(rows, offset, nRows, nCols, out);
+    }
+
+    /** Predicts the class of a row for a classifier of two classes from its score, see scoreBatch, breaking ties the
+     * same way classifyBatch does, so a batch can be both scored and classified from one call to scoreBatch.
+     * By default a row is of class 1 when its score is above 0.5.
+     *
+     * @param score the score of the row
+     * @return the predicted class
+     */
+    default double classifyScore(double score){
+        return score > 0.5 ? 1 : 0;
+    }
+
+    /** Maps the margin of a row under a linear model onto a score in [0, 1] with the logistic function. The margin is
+     * divided by the norm of the weights first, so the score follows the distance of the row from the decision
+     * boundary rather than the size the weights happen to have grown to. A positive margin too small to move the
+     * logistic function off 0.5 is given the next score above it, so the class found from the score always matches.
+     *
+     * @param margin the weighted sum of the row less the threshold
+     * @param norm the norm of the weights applied to the row
+     * @return the score, above 0.5 exactly when the margin is positive
+     */
+    static double linearScore(double margin, double norm){
+        if (norm == 0.0){
+            return margin > 0.0 ? 1.0 : margin < 0.0 ? 0.0 : 0.5;
+        }
+        double score = 1.0/(1.0 + Math.exp(-margin/norm));
+        return margin > 0.0 ? Math.max(score, Math.nextUp(0.5)) : score;
+    }
+
+
+}
@@ -0,0 +1,256 @@
+import weka.core.Instance;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/** Class modelling a LinearPerceptronEnsemble compiled into a single weight matrix for inference
+ *  Each row of the matrix holds one perceptron's weights spread out over all the attributes of the training data,
+ *  with zeros for the attributes the perceptron did not select, and each perceptron's standardisation is already
+ *  folded into its threshold. Classifying a row is then one matrix-vector product followed by a majority vote,
+ *  without touching any of the perceptron objects, and classifying a batch of rows with the dense matrix one
+ *  blocked matrix-matrix product, see VectorOps.gemm.
+ *  The matrix is stored either densely, or sparsely in compressed row form holding only the selected attributes.
+ */
+public class CompiledEnsemble implements Serializable, BatchClassifier {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int numMembers;
+    private final int numAttributes;
+    private final double[] thresholds;
+
+    private final double[] weights;
+
+    private final int[] rowStarts;
+    private final int[] columns;
+    private final double[] values;
+
+    /** Compiles the weights and thresholds of each perceptron into a single matrix
+     *
+     * @param memberWeights the weight vector of each perceptron, one weight per attribute it selected
+     * @param attribIndices the index in the training data of each attribute each perceptron selected
+     * @param thresholds the threshold of each perceptron
+     * @param numAttributes the number of attributes in the training data
+     * @param sparse true to store only the selected attributes, false to store the full matrix
+     */
+    CompiledEnsemble(double[][] memberWeights, int[][] attribIndices, double[] thresholds, int numAttributes, boolean sparse){
+        this.numMembers = memberWeights.length;
+        this.numAttributes = numAttributes;
+        this.thresholds = thresholds.clone();
+
+        if (sparse){
+            int nonZero = 0;
+            for (int[] indices : attribIndices){
+                nonZero += indices.length;
+            }
+
+            this.weights = null;
+            this.rowStarts = new int[this.numMembers + 1];
+            this.columns = new int[nonZero];
+            this.values = new double[nonZero];
+            int position = 0;
+            for (int m = 0; m < this.numMembers; m++){
+                this.rowStarts[m] = position;
+                for (int k = 0; k < attribIndices[m].length; k++){
+                    this.columns[position] = attribIndices[m][k];
+                    this.values[position] = memberWeights[m][k];
+                    position++;
+                }
+            }
+            this.rowStarts[this.numMembers] = position;
+        }
+        else {
+            this.weights = new double[this.numMembers*numAttributes];
+            for (int m = 0; m < this.numMembers; m++){
+                for (int k = 0; k < attribIndices[m].length; k++){
+                    this.weights[m*numAttributes + attribIndices[m][k]] = memberWeights[m][k];
+                }
+            }
+            this.rowStarts = null;
+            this.columns = null;
+            this.values = null;
+        }
+    }
+
+    /** @return the number of perceptrons compiled into the matrix */
+    public int numMembers(){
+        return this.numMembers;
+    }
+
+    /** @return the number of attributes each row must hold */
+    public int numAttributes(){
+        return this.numAttributes;
+    }
+
+    /** @return true if the matrix is stored in compressed row form */
+    public boolean isSparse(){
+        return this.weights == null;
+    }
+
+    /** Counts the votes for class 1 for one row of attribute values
+     *
+     * @param row the array holding the row
+     * @param offset the index of the first value of the row
+     * @return the number of perceptrons predicting class 1
+     */
+    public int countVotes(double[] row, int offset){
+        int votes = 0;
+        for (int m = 0; m < this.numMembers; m++){
+            double weightedSum;
+            if (this.weights != null){
+                weightedSum = VectorOps.dot(this.weights, m*this.numAttributes, row, offset, this.numAttributes);
+            }
+            else {
+                weightedSum = 0.0;
+                for (int p = this.rowStarts[m]; p < this.rowStarts[m + 1]; p++){
+                    weightedSum += this.values[p]*row[offset + this.columns[p]];
+                }
+            }
+            if (weightedSum > this.thresholds[m]){
+                votes++;
+            }
+        }
+        return votes;
+    }
+
+    /** Counts the votes for class 1 for an instance, reading only the values it stores, which for a sparse instance
+     * are its non-zero values. With the sparse matrix, each value is looked up among the attributes of a perceptron
+     * by a binary search, as those are stored in ascending order.
+     *
+     * @param instance the instance to classify, with attributes in the same order as the training data
+     * @return the number of perceptrons predicting class 1
+     */
+    public int countVotes(Instance instance){
+        int votes = 0;
+        for (int m = 0; m < this.numMembers; m++){
+            double weightedSum = 0.0;
+            for (int k = 0; k < instance.numValues(); k++){
+                int index = instance.index(k);
+                if (this.weights != null){
+                    if (index < this.numAttributes){
+                        weightedSum += this.weights[m*this.numAttributes + index]*instance.valueSparse(k);
+                    }
+                }
+                else {
+                    int p = Arrays.binarySearch(this.columns, this.rowStarts[m], this.rowStarts[m + 1], index);
+                    if (p >= 0){
+                        weightedSum += this.values[p]*instance.valueSparse(k);
+                    }
+                }
+            }
+            if (weightedSum > this.thresholds[m]){
+                votes++;
+            }
+        }
+        return votes;
+    }
+
+    /** Predicts the class of one row of attribute values using a majority vote
+     *
+     * @param row the attribute values, in the same order as the training data
+     * @return the predicted class
+     */
+    public double classify(double[] row){
+        int votes = countVotes(row, 0);
+        return this.numMembers - votes > votes ? 0 : 1;
+    }
+
+    /** Calculates the proportion of votes for each class for one row of attribute values
+     *
+     * @param row the attribute values, in the same order as the training data
+     * @return an array containing the proportion of votes for each class
+     */
+    public double[] distribution(double[] row){
+        int votes = countVotes(row, 0);
+        double[] distribution = new double[2];
+        distribution[0] = (double) (this.numMembers - votes)/this.numMembers;
+        distribution[1] = (double) votes/this.numMembers;
+        return distribution;
+    }
+
+    /** Predicts the class of a batch of rows stored in a row-major array.
+     * With the dense matrix, the rows are scored against every perceptron in blocks of VectorOps.TILE_ROWS rows, each
+     * block as one blocked matrix-matrix product so every tile of the matrix is reused across the rows of the block.
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    @Override
+    public void classifyBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        countVotes(rows, offset, nRows, nCols, out);
+        for (int r = 0; r < nRows; r++){
+            out[r] = this.numMembers - out[r] > out[r] ? 0 : 1;
+        }
+    }
+
+    /** Scores a batch of rows with the proportion of the perceptrons voting for class 1
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to score
+     * @param nCols the number of values stored for each row
+     * @param out the array the scores are written to
+     */
+    @Override
+    public void scoreBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        countVotes(rows, offset, nRows, nCols, out);
+        for (int r = 0; r < nRows; r++){
+            out[r] /= this.numMembers;
+        }
+    }
+
+    /** Predicts the class of a row from the proportion of votes for class 1, ties going to class 1 as they do in the
+     * majority vote
+     *
+     * @param score the proportion of the perceptrons voting for class 1
+     * @return the predicted class
+     */
+    @Override
+    public double classifyScore(double score){
+        return score >= 0.5 ? 1 : 0;
+    }
+
+    /** Counts the votes for class 1 for a batch of rows, see classifyBatch(double[], int, int, int, double[])
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to count the votes of
+     * @param nCols the number of values stored for each row
+     * @param out the array the number of votes for each row is written to
+     */
+    private void countVotes(double[] rows, int offset, int nRows, int nCols, double[] out){
+        if (nCols < this.numAttributes){
+            throw new IllegalArgumentException("Rows have " + nCols + " values but the model needs " + this.numAttributes);
+        }
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        if (this.weights == null){
+            for (int r = 0; r < nRows; r++){
+                out[r] = countVotes(rows, offset + r*nCols);
+            }
+            return;
+        }
+
+        int blockRows = Math.min(VectorOps.TILE_ROWS, nRows);
+        double[] scores = new double[blockRows*this.numMembers];
+        for (int start = 0; start < nRows; start += blockRows){
+            int numRows = Math.min(blockRows, nRows - start);
+            VectorOps.gemm(rows, offset + start*nCols, numRows, nCols, this.weights, this.numMembers, this.numAttributes,
+                    this.numAttributes, scores);
+            for (int r = 0; r < numRows; r++){
+                int votes = 0;
+                for (int m = 0; m < this.numMembers; m++){
+                    if (scores[r*this.numMembers + m] > this.thresholds[m]){
+                        votes++;
+                    }
+                }
+                out[start + r] = votes;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+import weka.core.Instance;
+import weka.core.Instances;
+
+/** Class holding a primitive snapshot of a Weka dataset for the training loops
+ *  The attribute values are stored in one contiguous row-major array, with the class values kept in a
+ *  separate label vector, so that repeated epochs avoid the virtual calls made through Instance objects.
+ *  Each row holds every attribute of the original instance, in the same order, including the class attribute.
+ */
+public class DenseInstances {
+
+    private final double[] values;
+    private final double[] classValues;
+    private final int numRows;
+    private final int numColumns;
+
+    /** Wraps existing row-major values and class values without copying them
+     *
+     * @param values the attribute values, row-major, of length numRows*numColumns
+     * @param classValues the class value of each row
+     * @param numRows the number of rows
+     * @param numColumns the number of values in each row
+     */
+    public DenseInstances(double[] values, double[] classValues, int numRows, int numColumns){
+        if (values.length < numRows*numColumns || classValues.length < numRows){
+            throw new IllegalArgumentException("Arrays are too small for " + numRows + " x " + numColumns + " rows");
+        }
+        this.values = values;
+        this.classValues = classValues;
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+    }
+
+    /** Copies the attribute values and class values of a dataset into primitive arrays in a single pass
+     *
+     * @param data the dataset to snapshot
+     * @return the primitive snapshot of the dataset
+     */
+    public static DenseInstances fromInstances(Instances data){
+        int numRows = data.numInstances();
+        int numColumns = data.numAttributes();
+        double[] values = new double[numRows*numColumns];
+        double[] classValues = new double[numRows];
+
+        for (int i = 0; i < numRows; i++){
+            Instance instance = data.instance(i);
+            int offset = i*numColumns;
+            for (int attr = 0; attr < numColumns; attr++){
+                values[offset + attr] = instance.value(attr);
+            }
+            classValues[i] = instance.classValue();
+        }
+
+        return new DenseInstances(values, classValues, numRows, numColumns);
+    }
+
+    /** @return the row-major attribute values */
+    public double[] values(){
+        return this.values;
+    }
+
+    /** @return the class value of each row */
+    public double[] classValues(){
+        return this.classValues;
+    }
+
+    /** @return the number of rows */
+    public int numRows(){
+        return this.numRows;
+    }
+
+    /** @return the number of values in each row */
+    public int numColumns(){
+        return this.numColumns;
+    }
+
+    /** @param row the row index
+     *  @return the offset of the first value of the row in the values array
+     */
+    public int offset(int row){
+        return row*this.numColumns;
+    }
+
+}
@@ -0,0 +1,64 @@
+/** Class viewing some of the rows and columns of a shared dense snapshot through index maps, without copying them
+ *  The view holds only an int[] of row indices, which may repeat as in a bootstrap sample, and an int[] of column
+ *  indices, so any number of views over one snapshot cost a few integers per row and column each. A row of the view
+ *  is gathered into a caller's buffer when it is needed, standardised on the way if a shift is given, so the shared
+ *  snapshot is only ever read.
+ *  As in the snapshot, the last column of the view holds the class attribute.
+ */
+public class DenseView {
+
+    private final DenseInstances data;
+    private final int[] rows;
+    private final int[] columns;
+    private final double[] shift;
+
+    /** Creates a view over a shared snapshot
+     *
+     * @param data the shared snapshot
+     * @param rows the indices of the rows of the view, in order, or null for every row
+     * @param columns the indices of the columns of the view, in order, ending with the class attribute
+     * @param shift the amount subtracted from each column of the view to standardise it, or null
+     */
+    public DenseView(DenseInstances data, int[] rows, int[] columns, double[] shift){
+        this.data = data;
+        this.rows = rows;
+        this.columns = columns;
+        this.shift = shift;
+    }
+
+    /** @return the number of rows in the view */
+    public int numRows(){
+        return this.rows != null ? this.rows.length : this.data.numRows();
+    }
+
+    /** @return the number of columns in the view, including the class attribute */
+    public int numColumns(){
+        return this.columns.length;
+    }
+
+    /** @param row the index of a row of the view
+     *  @return the class value of the row
+     */
+    public double classValue(int row){
+        return this.data.classValues()[this.rows != null ? this.rows[row] : row];
+    }
+
+    /** Gathers a row of the view into a buffer, standardising each column if a shift was given
+     *
+     * @param row the index of a row of the view
+     * @param buffer the array the row is written to, of at least numColumns() values
+     */
+    public void copyRow(int row, double[] buffer){
+        double[] values = this.data.values();
+        int offset = this.data.offset(this.rows != null ? this.rows[row] : row);
+        for (int c = 0; c < this.columns.length; c++){
+            buffer[c] = values[offset + this.columns[c]];
+        }
+        if (this.shift != null){
+            for (int c = 0; c < this.columns.length; c++){
+                buffer[c] -= this.shift[c];
+            }
+        }
+    }
+
+}
@@ -1,32 +1,143 @@
 import weka.classifiers.AbstractClassifier;
-import weka.classifiers.Evaluation;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.Capabilities;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Randomizable;
+import weka.core.SparseInstance;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
 
 /** Class modelling a Linear Perceptron with parameter tuning improvements.
  *  The class is an extended version of LinearPerceptron.java, with added capabilities of standardising the data,
  *  choosing an off-line learning algorithm, and selecting whether to use on-line or off-line based on the
  *  cross validation error.
  *  By default, the attributes are standardised, and on-line is used without model selection
+ *  Data whose class has more than two values is learnt one-vs-rest, with one perceptron per class held together in a
+ *  weight matrix and trained in a single scan per epoch, see MulticlassPerceptronTrainer, and each instance predicted
+ *  as the class scoring highest.
  */
-public class EnhancedLinearPerceptron extends AbstractClassifier {
+public class EnhancedLinearPerceptron extends AbstractClassifier implements Randomizable, UpdateableClassifier, BatchClassifier {
 
-    private static double learningRate;
+    private double learningRate = 1.0;
     private static int MAX_ITERATIONS = 1000;
     private double[] linearModel;
+    private double threshold;
+
+    private int numClasses = 2;
+    private double[] classWeights;
+    private double[] intercepts;
 
     private boolean biasTerm = false;
+    private int seed = 1;
     public Instances data;
 
     private boolean STANDARDISE_ATTRIBUTES = true;
-    private double[] means;
-    private double[] standardDeviations;
+    private StandardScaler scaler;
 
     private boolean USE_ALTERNATIVE_ALGORITHM = false;
     private boolean MODEL_SELECTION = false;
 
+    private int batchSize = 0;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private transient EpochListener epochListener;
+    private transient PerceptronMetrics metrics;
+    private transient ExecutorService executor;
+    private transient ThreadLocal<double[]> scoresBuffer;
+
+    private boolean warmStart = false;
+
+    /** Sets the seed used to generate the initial weight vector
+     *
+     * @param seed the random seed
+     */
+    @Override
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /** @return the seed used to generate the initial weight vector */
+    @Override
+    public int getSeed() {
+        return this.seed;
+    }
+
+    /** Sets the number of rows in each mini-batch of the off-line algorithm
+     *
+     * @param batchSize the mini-batch size, or 0 to update the weights once per epoch
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /** Sets how many epochs training may run without the loss improving before it stops, see StoppingPolicy
+     *
+     * @param plateauEpochs the number of epochs, or 0 to only stop on zero errors or the maximum number of iterations
+     */
+    public void setPlateauEpochs(int plateauEpochs) {
+        this.stoppingPolicy.setPlateauEpochs(plateauEpochs);
+    }
+
+    /** Sets the policy deciding when training stops before the maximum number of iterations, by default after an
+     * epoch with no misclassified rows
+     *
+     * @param stoppingPolicy the stopping policy
+     */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** Sets the listener the errors, weight norm and time of each training epoch are reported to.
+     * Only the runs on the full training data report to it, not the cross validation folds of model selection;
+     * with model selection the on-line and off-line runs report concurrently, so the listener must be thread safe.
+     *
+     * @param epochListener the listener, or null for none
+     */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** Sets the metrics the classifier records its training and the latency of classifying single instances to.
+     * No metrics are recorded by default, in which case recording costs nothing beyond a null check.
+     * As with the epoch listener, only the runs on the full training data are counted, not the cross validation folds.
+     *
+     * @param metrics the metrics to record to, or null for none
+     */
+    public void setMetrics(PerceptronMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Sets the executor the off-line algorithm works on its shards with, the common fork-join pool if not set.
+     * With model selection the cross validation folds are trained on it instead, and the off-line algorithm works on
+     * the shards of each fold one after another, so a fixed thread pool is never left waiting on its own tasks.
+     *
+     * @param executor the executor to train on
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Sets whether building the classifier again continues training from the current linear model, rather than
+     * from a new random weight vector, so new data can be absorbed without starting over.
+     * The statistics of the new data are merged into the current scaler rather than replacing it, so the continued
+     * weights are applied to data standardised by every row seen so far. This holds for streamed and mapped builds too.
+     *
+     * @param warmStart true to continue from the current linear model
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
     /** Uses the Weka capabilities feature to disable nominal attributes,
      * enforcing that the classifier should only be used with continuous data
      * @return the capabilities of the classifier
@@ -39,258 +150,1181 @@ public class EnhancedLinearPerceptron extends AbstractClassifier {
         return caps;
     }
 
-    /** Standardises the data's attributes by calculating the means and standard deviations,
-     * and updating the attribute values in the dataset to be zero mean and unit standard deviation
+    /** Generates the initial weight vector from the seed, with the possible inclusion of a bias term.
+     * If warm starting is enabled and a linear model of the same size has already been built, training continues
+     * from a copy of that model instead.
      *
-     * @param data the data to be standardised
-     * @return the standardised data
+     * @param numColumns the number of values in each row
+     * @return the initial weight vector
      */
-    private Instances standardiseData(Instances data){
-        Instances standardisedData = data;
+    private double[] initialWeights(int numColumns){
+        if (this.warmStart && this.linearModel != null && this.linearModel.length == numColumns + 1){
+            return this.linearModel.clone();
+        }
 
-        this.means = new double[data.numAttributes()];
-        this.standardDeviations = new double[data.numAttributes()];
+        double[] weightVector = new double[numColumns + 1];
+        Random rnd = new Random(this.seed);
+        for (int i = 0; i < numColumns; i++){
+            double w = rnd.nextDouble();
+            weightVector[i] = w;
+        }
 
-        for (int i = 0; i < data.numAttributes() - 1; i++){
+        if (this.biasTerm){
+            double bias = rnd.nextDouble();
+            weightVector[weightVector.length - 1] = bias;
+        }
+        return weightVector;
+    }
 
-            double sum = 0.0;
-            for (int j = 0; j < data.numInstances(); j++){
-                sum += data.get(j).value(i);
-            }
+    /** Chooses the scaler a build standardises its training data with. When warm starting from a scaler over the same
+     * columns, the statistics of the new data are merged with those of the current scaler, so the running statistics
+     * built up by earlier builds and updates are kept; otherwise the scaler fitted to the new data is used alone.
+     *
+     * @param fitted the scaler fitted to the new training data
+     * @return the scaler to standardise the training data with
+     */
+    private StandardScaler warmStartScaler(StandardScaler fitted){
+        if (!this.warmStart || this.scaler == null || this.scaler.numColumns() != fitted.numColumns()){
+            return fitted;
+        }
+        StandardScaler merged = new StandardScaler(fitted.numColumns());
+        merged.merge(this.scaler);
+        merged.merge(fitted);
+        return merged;
+    }
 
-            double mean = sum / (double) data.numInstances();
-            this.means[i] = mean;
-            double standardDeviation = 0.0;
+    /** Generates the initial one-vs-rest weight matrix from the seed, one row of numColumns weights per class: a
+     * weight for each non-class attribute followed by the bias, set only if the bias term is enabled.
+     * If warm starting is enabled and a weight matrix of the same size has already been built, training continues
+     * from a copy of that matrix instead.
+     *
+     * @param numColumns the number of values in each row
+     * @return the initial weight matrix
+     */
+    private double[] initialClassWeights(int numColumns){
+        if (this.warmStart && this.classWeights != null && this.classWeights.length == this.numClasses*numColumns){
+            return this.classWeights.clone();
+        }
 
-            for (int j = 0; j < data.numInstances(); j++){
-                standardDeviation += Math.pow(data.get(j).value(i) - mean, 2);
+        double[] weights = new double[this.numClasses*numColumns];
+        Random rnd = new Random(this.seed);
+        for (int k = 0; k < this.numClasses; k++){
+            for (int i = 0; i < numColumns - 1; i++){
+                weights[k*numColumns + i] = rnd.nextDouble();
             }
-            this.standardDeviations[i] = Math.sqrt(standardDeviation/data.numInstances());
-
-            for (int j = 0; j < data.numInstances(); j++){
-                double standardised = data.get(j).value(i) - means[i] / standardDeviations[i];
-                standardisedData.get(j).setValue(i, standardised);
+            if (this.biasTerm){
+                weights[k*numColumns + numColumns - 1] = rnd.nextDouble();
             }
         }
-
-        return standardisedData;
+        return weights;
     }
 
     /** Builds the classifier on a set of training data to form a linear model
-     * The weight vector is initialised to random small values, with the possible inclusion of a bias term
+     * The weight vector is initialised to random small values from the seed, with the possible inclusion of a bias term
      * The training method then iterates over the dataset, using the on-line learning rule to update the weight vector
-     * The iteration stops when the maximum number of iterations has been met, or there are no more errors.
+     * Rows of class 1 are trained towards +1 and rows of class 0 towards -1, so only misclassified rows update the
+     * weights and count as errors.
+     * The iteration stops when the maximum number of iterations has been met, or earlier as decided by the stopping
+     * policy, by default when there are no more errors.
+     * The epochs run over a primitive snapshot of the dataset rather than the Instance objects.
      *
      * @param data the dataset to build a linear model on
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param listener the listener each epoch is reported to when training on every row, or null
      * @return the linear model/final weight vector
      */
-    private double[] perceptronTraining(Instances data){
+    private double[] perceptronTraining(DenseInstances data, int[] rows, EpochListener listener){
 
-        double[] weightVector = new double[data.numAttributes() + 1];
+        double[] weightVector = initialWeights(data.numColumns());
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        int numColumns = data.numColumns();
 
-        for (int i = 0; i < data.numAttributes(); i++){
-            double w = new Random().nextDouble();
-            weightVector[i] = w;
-        }
+        StoppingPolicy.Run run = this.stoppingPolicy.start(rows == null ? listener : null);
 
-        if (this.biasTerm){
-            double bias = new Random().nextDouble();
-            weightVector[weightVector.length - 1] = bias;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++){
+            double localError;
+            int errors = 0;
+            double loss = 0.0;
+
+            int numRows = rows != null ? rows.length : data.numRows();
+            for (int r = 0; r < numRows; r++){
+                int i = rows != null ? rows[r] : r;
+                int offset = data.offset(i);
+                double sum = VectorOps.dot(weightVector, 0, values, offset, numColumns);
+
+                double predictedClass = java.lang.Math.signum(sum);
+                double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+                localError = target - predictedClass;
+
+                double rate = 0.5*this.learningRate*localError;
+                if (rate != 0.0){
+                    errors++;
+                    loss += localError*localError;
+                    VectorOps.axpy(rate, values, offset, weightVector, 0, weightVector.length - 1);
+                }
+            }
+
+            if (run.epochFinished(errors, loss, weightVector)){
+                break;
+            }
         }
 
-        boolean changes = true;
-        int lastModified = -1;
-        boolean currentModified;
-        int iteration = 0;
-        this.learningRate = 1.0;
+        return weightVector;
+    }
 
-        do {
-            iteration++;
-            double localError;
+    /** Runs the on-line learning rule over a view of a shared snapshot, gathering one standardised row of the view at
+     * a time into a buffer, see perceptronTraining(DenseInstances, int[], EpochListener)
+     *
+     * @param view the rows and columns to train on
+     * @param listener the listener each epoch is reported to, or null
+     * @return the linear model/final weight vector
+     */
+    private double[] perceptronTraining(DenseView view, EpochListener listener){
+        int numColumns = view.numColumns();
+        double[] weightVector = initialWeights(numColumns);
+        double[] row = new double[numColumns];
 
-            for (int i = 0; i < data.numInstances(); i++){
-                currentModified = false;
-                Instance instance = data.instance(i);
-                double sum = 0.0;
+        StoppingPolicy.Run run = this.stoppingPolicy.start(listener);
 
-                for (int attr = 0; attr < instance.numAttributes(); attr++) {
-                    sum += weightVector[attr]*instance.value(attr);
-                }
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++){
+            int errors = 0;
+            double loss = 0.0;
 
-                double predictedClass = java.lang.Math.signum(sum);
-                localError = instance.classValue() - predictedClass;
+            for (int r = 0; r < view.numRows(); r++){
+                view.copyRow(r, row);
+                double sum = VectorOps.dot(weightVector, 0, row, 0, numColumns);
+                double target = view.classValue(r) != 0.0 ? 1.0 : -1.0;
+                double localError = target - java.lang.Math.signum(sum);
 
-                for (int j = 0; j < weightVector.length - 1; j++) {
-                    double weightChange = 0.5*this.learningRate*localError*instance.value(j);
-                    if (weightChange != 0.0 && weightChange != -0.0){
-                        lastModified = i;
-                        currentModified = true;
-                    }
-                    weightVector[j] += weightChange;
+                double rate = 0.5*this.learningRate*localError;
+                if (rate != 0.0){
+                    errors++;
+                    loss += localError*localError;
+                    VectorOps.axpy(rate, row, 0, weightVector, 0, weightVector.length - 1);
                 }
+            }
 
-                if (!currentModified && lastModified == i) {
-                    changes = false;
-                }
+            if (run.epochFinished(errors, loss, weightVector)){
+                break;
             }
         }
 
-        while(iteration < this.MAX_ITERATIONS && changes);
-
         return weightVector;
     }
 
+    /** Runs the on-line learning rule over a sparse snapshot of the dataset, touching only the non-zero values of
+     * each row, using a SparsePerceptronTrainer
+     *
+     * @param data the sparse snapshot of the dataset
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param shift the amount subtracted from each attribute value to standardise it, or null
+     * @param listener the listener each epoch is reported to when training on every row, or null
+     * @return the linear model/final weight vector
+     */
+    private double[] perceptronTraining(SparseInstances data, int[] rows, double[] shift, EpochListener listener){
+        double[] weightVector = initialWeights(data.numColumns());
+
+        SparsePerceptronTrainer trainer = new SparsePerceptronTrainer();
+        trainer.setLearningRate(this.learningRate);
+        trainer.setMaxIterations(MAX_ITERATIONS);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(rows == null ? listener : null);
+        trainer.setShift(shift);
+
+        return trainer.trainOnline(data, rows, weightVector);
+    }
+
     /** Builds the classifier on a set of training data to form a linear model
-     * The weight vector is initialised to random small values, with the possible inclusion of a bias term
+     * The weight vector is initialised to random small values from the seed, with the possible inclusion of a bias term
      * The training method then iterates over the dataset, using the off-line learning rule to update the weight vector
-     * The iteration stops when the maximum number of iterations has been met, or there are no more errors.
+     * The iteration stops when the maximum number of iterations has been met, there are no more errors, or the loss
+     * stops improving.
      *
      * @param data the dataset to build a linear model on
      * @return the linear model/final weight vector
      */
     public double[] gradientDescentTraining(Instances data){
-        double[] weightVector = new double[data.numAttributes() + 1];
-
-        for (int i = 0; i < data.numAttributes(); i++){
-            double w = new Random().nextDouble();
-            weightVector[i] = w;
+        PerceptronMetrics.Training training = startTraining();
+        EpochListener listener = training != null ? training : this.epochListener;
+        double[] weightVector;
+        if (SparseInstances.isSparse(data)){
+            weightVector = gradientDescentTraining(SparseInstances.fromInstances(data), null, null, listener);
         }
-
-        if (this.biasTerm){
-            double bias = new Random().nextDouble();
-            weightVector[weightVector.length - 1] = bias;
+        else {
+            weightVector = gradientDescentTraining(DenseInstances.fromInstances(data), null, listener, true);
         }
+        finishTraining(training, data.numInstances());
+        return weightVector;
+    }
 
-        double localError;
-        int iteration = 0;
+    /** Runs the off-line learning rule over a primitive snapshot of the dataset, using a GradientDescentTrainer
+     * which splits each mini-batch into shards worked on in parallel
+     *
+     * @param data the dataset to build a linear model on
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param listener the listener each epoch is reported to when training on every row, or null
+     * @param parallel false to work on the shards on the calling thread, as a cross validation fold does
+     * @return the linear model/final weight vector
+     */
+    private double[] gradientDescentTraining(DenseInstances data, int[] rows, EpochListener listener, boolean parallel){
+        double[] weightVector = initialWeights(data.numColumns());
 
-        do{
-            iteration++;
-            double[] weightChange = new double[weightVector.length];
+        GradientDescentTrainer trainer = new GradientDescentTrainer();
+        trainer.setLearningRate(this.learningRate);
+        trainer.setMaxIterations(MAX_ITERATIONS);
+        trainer.setBatchSize(this.batchSize);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(rows == null ? listener : null);
+        trainer.setExecutor(this.executor);
+        trainer.setParallel(parallel);
 
-            double sum = 0.0;
+        return trainer.train(data, rows, weightVector);
+    }
 
-            for (Instance i : data){
+    /** Runs the off-line learning rule over a sparse snapshot of the dataset, touching only the non-zero values of
+     * each row, using a SparsePerceptronTrainer
+     *
+     * @param data the sparse snapshot of the dataset
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param shift the amount subtracted from each attribute value to standardise it, or null
+     * @param listener the listener each epoch is reported to when training on every row, or null
+     * @return the linear model/final weight vector
+     */
+    private double[] gradientDescentTraining(SparseInstances data, int[] rows, double[] shift, EpochListener listener){
+        double[] weightVector = initialWeights(data.numColumns());
 
-                for (int attr = 0; attr < i.numAttributes(); attr++) {
-                    sum += weightVector[attr]*i.value(attr);
-                }
+        SparsePerceptronTrainer trainer = new SparsePerceptronTrainer();
+        trainer.setLearningRate(this.learningRate);
+        trainer.setMaxIterations(MAX_ITERATIONS);
+        trainer.setBatchSize(this.batchSize);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(rows == null ? listener : null);
+        trainer.setShift(shift);
 
-                double predictedClass = java.lang.Math.signum(sum);
-                localError = i.classValue() - predictedClass;
+        return trainer.trainOffline(data, rows, weightVector);
+    }
 
-                for (int j = 0; j < weightVector.length - 1; j++){
-                    weightChange[j] += 0.5*learningRate*localError*i.value(j);
-                }
-            }
+    /** Runs the one-vs-rest learning rules over a primitive snapshot of a dataset with more than two classes, using a
+     * MulticlassPerceptronTrainer which updates the weights of every class in the same scan
+     *
+     * @param data the dataset to build the weight matrix on
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param online true to run the on-line learning rule, false to run the off-line one
+     * @param listener the listener each epoch is reported to when training on every row, or null
+     * @return the weight matrix, one row of weights per class
+     */
+    private double[] multiclassTraining(DenseInstances data, int[] rows, boolean online, EpochListener listener){
+        double[] weights = initialClassWeights(data.numColumns());
 
-            for (int j = 0; j < weightVector.length; j++){
-                weightVector[j] += weightChange[j];
-            }
+        MulticlassPerceptronTrainer trainer = new MulticlassPerceptronTrainer();
+        trainer.setLearningRate(this.learningRate);
+        trainer.setMaxIterations(MAX_ITERATIONS);
+        trainer.setBatchSize(this.batchSize);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(rows == null ? listener : null);
 
+        if (online){
+            return trainer.trainOnline(data, rows, this.numClasses, weights);
         }
-        while(iteration <= MAX_ITERATIONS);
+        return trainer.trainOffline(data, rows, this.numClasses, weights);
+    }
 
-        return weightVector;
+    /** Runs the on-line one-vs-rest learning rule over a view of a shared snapshot, see
+     * multiclassTraining(DenseInstances, int[], boolean, EpochListener)
+     *
+     * @param view the rows and columns to train on
+     * @param listener the listener each epoch is reported to, or null
+     * @return the weight matrix, one row of weights per class
+     */
+    private double[] multiclassTraining(DenseView view, EpochListener listener){
+        double[] weights = initialClassWeights(view.numColumns());
+
+        MulticlassPerceptronTrainer trainer = new MulticlassPerceptronTrainer();
+        trainer.setLearningRate(this.learningRate);
+        trainer.setMaxIterations(MAX_ITERATIONS);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(listener);
+
+        return trainer.trainOnline(view, this.numClasses, weights);
     }
 
     /** Decides whether the on-line or off-line learning algorithm should be used, by building the classifier on
      * the data using each of them, calculating the cross validation error, and choosing the algorithm with the
      * lowest error
+     * Every fold of both algorithms, along with both models on the full data, is trained concurrently on the
+     * primitive snapshot, with each fold reading its rows through an index array rather than a copy of the data.
+     * The full-data model of the winning algorithm is returned, so it does not need to be trained again.
+     * The algorithms are passed in as functions from the rows to train on to a model, so the same selection runs
+     * over a dense or a sparse snapshot. As every run is itself a task on the executor, the algorithms must not wait
+     * on further tasks of their own on it.
      *
-     * @param train the training data being used
-     * @return true if on-line should be used, false if off-line should be used
-     * @throws Exception catches unhandles Weka Exceptions
+     * @param numRows the number of rows in the training data
+     * @param online trains the on-line algorithm on the given rows, or on every row if given null
+     * @param offline trains the off-line algorithm on the given rows, or on every row if given null
+     * @param correct counts how many of the given rows a model classifies correctly
+     * @return the linear model of the algorithm with the highest cross validation accuracy
+     * @throws Exception catches unhandled exceptions thrown while training
      */
-    private boolean selectModel(Instances train) throws Exception {
-        this.linearModel = perceptronTraining(train);
+    private double[] selectModel(int numRows, Function<int[], double[]> online, Function<int[], double[]> offline,
+                                 ToIntBiFunction<double[], int[]> correct) throws Exception {
         int numFolds;
-
-        Evaluation eval = new Evaluation(train);
-        if (train.numInstances() >= 10){
+        if (numRows >= 10){
             numFolds = 10;
         }
         else {
-            numFolds = train.numInstances();
+            numFolds = numRows;
+        }
+
+        int[] order = new int[numRows];
+        for (int i = 0; i < numRows; i++){
+            order[i] = i;
+        }
+        Random rnd = new Random(1);
+        for (int i = numRows - 1; i > 0; i--){
+            int j = rnd.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        int[][] trainRows = new int[numFolds][];
+        int[][] testRows = new int[numFolds][];
+        for (int f = 0; f < numFolds; f++){
+            int testStart = f*numRows/numFolds;
+            int testEnd = (f + 1)*numRows/numFolds;
+            testRows[f] = Arrays.copyOfRange(order, testStart, testEnd);
+            trainRows[f] = new int[numRows - (testEnd - testStart)];
+            System.arraycopy(order, 0, trainRows[f], 0, testStart);
+            System.arraycopy(order, testEnd, trainRows[f], testStart, numRows - testEnd);
+        }
+
+        List<Callable<double[]>> tasks = new ArrayList<>(2*numFolds + 2);
+        tasks.add(() -> online.apply(null));
+        tasks.add(() -> offline.apply(null));
+        for (int f = 0; f < numFolds; f++){
+            int[] rows = trainRows[f];
+            tasks.add(() -> online.apply(rows));
+            tasks.add(() -> offline.apply(rows));
+        }
+
+        ExecutorService pool = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+        List<double[]> models = new ArrayList<>(tasks.size());
+        for (Future<double[]> future : pool.invokeAll(tasks)){
+            try {
+                models.add(future.get());
+            }
+            catch (ExecutionException e){
+                if (e.getCause() instanceof Exception){
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        int onlineCorrect = 0;
+        int offlineCorrect = 0;
+        for (int f = 0; f < numFolds; f++){
+            onlineCorrect += correct.applyAsInt(models.get(2 + 2*f), testRows[f]);
+            offlineCorrect += correct.applyAsInt(models.get(3 + 2*f), testRows[f]);
+        }
+
+        if (onlineCorrect > offlineCorrect){
+            return models.get(0);
+        }
+        return models.get(1);
+    }
+
+    /** Counts how many of the given rows of the standardised data a linear model classifies correctly
+     *
+     * @param model the linear model to evaluate
+     * @param dense the primitive snapshot of the standardised data
+     * @param rows the indices of the rows to classify
+     * @return the number of rows classified correctly
+     */
+    private static int countCorrect(double[] model, DenseInstances dense, int[] rows){
+        int numWeights = model.length - 1;
+        double threshold = 0.0;
+        for (int i = 0; i < numWeights; i++){
+            threshold += model[i];
+        }
+
+        int correct = 0;
+        for (int i : rows){
+            double weightedSum = VectorOps.dot(model, 0, dense.values(), dense.offset(i), numWeights);
+            double predictedClass = weightedSum > threshold ? 1 : 0;
+            if (predictedClass == dense.classValues()[i]){
+                correct++;
+            }
         }
-        eval.crossValidateModel(this, train, numFolds, new Random(1));
-        double onlineAccuracy = eval.pctCorrect();
+        return correct;
+    }
 
-        this.linearModel = gradientDescentTraining(train);
-        eval.crossValidateModel(this, train, numFolds, new Random(1));
+    /** Counts how many of the given rows of a sparse snapshot a linear model classifies correctly, once standardised.
+     * The weighted sum of a standardised row is w.x - w.shift, so only the non-zero values of each row are read.
+     *
+     * @param model the linear model to evaluate
+     * @param sparse the sparse snapshot of the raw data
+     * @param shift the amount subtracted from each attribute value to standardise it, or null
+     * @param rows the indices of the rows to classify
+     * @return the number of rows classified correctly
+     */
+    private static int countCorrect(double[] model, SparseInstances sparse, double[] shift, int[] rows){
+        int numWeights = model.length - 1;
+        double threshold = 0.0;
+        for (int i = 0; i < numWeights; i++){
+            threshold += model[i];
+        }
+        double shiftedSum = shift != null ? VectorOps.dot(model, 0, shift, 0, Math.min(numWeights, shift.length)) : 0.0;
 
-        double offlineAccuracy = eval.pctCorrect();
+        int correct = 0;
+        for (int i : rows){
+            double weightedSum = sparse.dot(i, model) - shiftedSum;
+            double predictedClass = weightedSum > threshold ? 1 : 0;
+            if (predictedClass == sparse.classValues()[i]){
+                correct++;
+            }
+        }
+        return correct;
+    }
 
-        return onlineAccuracy > offlineAccuracy;
+    /** Counts how many of the given rows of the standardised data a one-vs-rest weight matrix classifies correctly
+     *
+     * @param weights the weight matrix to evaluate, one row of weights per class
+     * @param numClasses the number of classes
+     * @param dense the primitive snapshot of the standardised data
+     * @param rows the indices of the rows to classify
+     * @return the number of rows classified correctly
+     */
+    private static int countCorrect(double[] weights, int numClasses, DenseInstances dense, int[] rows){
+        double[] scores = new double[numClasses];
+        int correct = 0;
+        for (int i : rows){
+            int predictedClass = MulticlassPerceptronTrainer.predict(weights, null, numClasses, dense.numColumns(),
+                    dense.values(), dense.offset(i), scores);
+            if (predictedClass == dense.classValues()[i]){
+                correct++;
+            }
+        }
+        return correct;
     }
 
     /** Sets the data variable if the data is continuous, then standardises the attributes if the flag is set
-     * Uses model selection if the flag is set, or the off-line algorithm if that flag is set
+     * The data is snapshotted once into primitive arrays which every training run then iterates over
+     * A StandardScaler is fitted to the snapshot in one row-major pass and the snapshot standardised with it,
+     * so the caller's data is never modified
+     * Uses model selection if the flag is set, keeping the model it selects, or the off-line algorithm if that flag is set
+     * Data made of SparseInstance objects is snapshotted in compressed sparse row form instead and left unmodified,
+     * with the standardisation applied lazily while training so that only the non-zero values are ever touched.
+     * If metrics are set, the epochs, updates and time of the build are recorded to them.
+     * Data with more than two classes is learnt one-vs-rest instead, see buildMulticlass(Instances, EpochListener).
      *
      * @param data the training data to build the classifier on
      * @throws Exception catches unhandled Weka Exceptions
      */
     public void buildClassifier(Instances data) throws Exception {
         this.getCapabilities().testWithFail(data);
+        PerceptronMetrics.Training training = startTraining();
+        EpochListener listener = training != null ? training : this.epochListener;
+        if (data.numClasses() > 2){
+            buildMulticlass(data, listener);
+            finishTraining(training, data.numInstances());
+            return;
+        }
+        this.numClasses = 2;
+        this.classWeights = null;
+        this.intercepts = null;
+        if (SparseInstances.isSparse(data)){
+            buildSparse(data, listener);
+            finishTraining(training, data.numInstances());
+            return;
+        }
+        this.data = data;
+        DenseInstances dense = DenseInstances.fromInstances(this.data);
+        if (STANDARDISE_ATTRIBUTES){
+            this.scaler = warmStartScaler(StandardScaler.fit(dense, this.executor));
+            this.scaler.transform(dense);
+        }
+        else {
+            this.scaler = null;
+        }
+        if (MODEL_SELECTION){
+            this.linearModel = selectModel(dense.numRows(), rows -> perceptronTraining(dense, rows, listener),
+                    rows -> gradientDescentTraining(dense, rows, listener, false), (model, rows) -> countCorrect(model, dense, rows));
+        }
+        else if (!USE_ALTERNATIVE_ALGORITHM) {
+            this.linearModel = perceptronTraining(dense, null, listener);
+        }
+        else {
+            this.linearModel = gradientDescentTraining(dense, null, listener, true);
+        }
+        this.threshold = calculateThreshold();
+        finishTraining(training, dense.numRows());
+    }
+
+    /** Builds the classifier on sparse training data, see buildClassifier(Instances)
+     *
+     * @param data the sparse training data to build the classifier on
+     * @param listener the listener each epoch of the full-data runs is reported to, or null
+     * @throws Exception catches unhandled exceptions thrown while training
+     */
+    private void buildSparse(Instances data, EpochListener listener) throws Exception {
+        this.data = data;
+        SparseInstances sparse = SparseInstances.fromInstances(data);
+        this.scaler = STANDARDISE_ATTRIBUTES ? warmStartScaler(StandardScaler.fit(sparse)) : null;
+        double[] shift = this.scaler != null ? this.scaler.shifts() : null;
+
+        if (MODEL_SELECTION){
+            this.linearModel = selectModel(sparse.numRows(), rows -> perceptronTraining(sparse, rows, shift, listener),
+                    rows -> gradientDescentTraining(sparse, rows, shift, listener),
+                    (model, rows) -> countCorrect(model, sparse, shift, rows));
+        }
+        else if (!USE_ALTERNATIVE_ALGORITHM) {
+            this.linearModel = perceptronTraining(sparse, null, shift, listener);
+        }
+        else {
+            this.linearModel = gradientDescentTraining(sparse, null, shift, listener);
+        }
+        this.threshold = calculateThreshold();
+    }
+
+    /** Builds a one-vs-rest classifier on training data with more than two classes, training the weights of every
+     * class together in one scan per epoch. The data is snapshotted and standardised as for two classes, with sparse
+     * data snapshotted densely, and the algorithm chosen by the same flags and model selection. The standardisation
+     * is folded into the intercept of each class, so classifying works on the raw attribute values.
+     *
+     * @param data the training data to build the classifier on
+     * @param listener the listener each epoch of the full-data runs is reported to, or null
+     * @throws Exception catches unhandled exceptions thrown while training
+     */
+    private void buildMulticlass(Instances data, EpochListener listener) throws Exception {
+        this.data = data;
+        this.numClasses = data.numClasses();
+        DenseInstances dense = DenseInstances.fromInstances(data);
         if (STANDARDISE_ATTRIBUTES){
-            this.data = standardiseData(data);
+            this.scaler = warmStartScaler(StandardScaler.fit(dense, this.executor));
+            this.scaler.transform(dense);
         }
-        else{
-            this.data = data;
+        else {
+            this.scaler = null;
         }
         if (MODEL_SELECTION){
-            boolean model = selectModel(this.data);
-            if (model){
-                this.linearModel = perceptronTraining(this.data);
+            int numClasses = this.numClasses;
+            this.classWeights = selectModel(dense.numRows(), rows -> multiclassTraining(dense, rows, true, listener),
+                    rows -> multiclassTraining(dense, rows, false, listener),
+                    (weights, rows) -> countCorrect(weights, numClasses, dense, rows));
+        }
+        else {
+            this.classWeights = multiclassTraining(dense, null, !USE_ALTERNATIVE_ALGORITHM, listener);
+        }
+        this.linearModel = null;
+        this.intercepts = calculateIntercepts();
+    }
+
+    /** Builds the classifier on some of the rows and columns of a shared snapshot, read through a DenseView so they
+     * are never copied, as LinearPerceptronEnsemble does for each of its perceptrons. The on-line learning algorithm
+     * is run, one-vs-rest for more than two classes, with the attributes standardised if the flag is set by the
+     * statistics of the given scaler for the columns viewed. The data variable is set to null.
+     *
+     * @param data the shared snapshot, holding the raw attribute values, which is only read
+     * @param rows the indices of the rows to train on, in order and possibly repeated, or null to train on every row
+     * @param columns the indices of the columns to train on, in ascending order, ending with the class attribute
+     * @param numClasses the number of classes
+     * @param scaler the scaler fitted to the shared snapshot
+     */
+    void buildClassifier(DenseInstances data, int[] rows, int[] columns, int numClasses, StandardScaler scaler){
+        PerceptronMetrics.Training training = startTraining();
+        EpochListener listener = training != null ? training : this.epochListener;
+        this.data = null;
+        this.scaler = STANDARDISE_ATTRIBUTES ? scaler.select(columns) : null;
+        DenseView view = new DenseView(data, rows, columns, this.scaler != null ? this.scaler.shifts() : null);
+
+        this.numClasses = Math.max(2, numClasses);
+        if (this.numClasses > 2){
+            this.classWeights = multiclassTraining(view, listener);
+            this.linearModel = null;
+            this.intercepts = calculateIntercepts();
+        }
+        else {
+            this.classWeights = null;
+            this.intercepts = null;
+            this.linearModel = perceptronTraining(view, listener);
+            this.threshold = calculateThreshold();
+        }
+        finishTraining(training, view.numRows());
+    }
+
+    /** Builds the classifier by streaming an ARFF or CSV file rather than loading it into memory.
+     * The attributes are standardised with statistics from a single pass over the file if the flag is set,
+     * then the on-line learning algorithm is run over chunks of rows re-read from the file every epoch,
+     * so memory use does not grow with the size of the dataset. The data variable holds only the header.
+     * Only data with two classes can be streamed, which is checked from the header before any rows are read.
+     *
+     * @param file the ARFF or CSV file to stream, for example new File("train.arff")
+     * @throws Exception if the file cannot be read or has more than two classes
+     */
+    public void buildClassifier(File file) throws Exception {
+        Instances structure = StreamingPerceptronTrainer.readStructure(file);
+        this.getCapabilities().testWithFail(structure);
+        if (structure.numClasses() > 2){
+            throw new IllegalArgumentException("Only two classes can be streamed, not " + structure.numClasses());
+        }
+
+        PerceptronMetrics.Training training = startTraining();
+        StreamingPerceptronTrainer trainer = new StreamingPerceptronTrainer();
+        trainer.setSeed(this.seed);
+        trainer.setBiasTerm(this.biasTerm);
+        trainer.setStandardise(STANDARDISE_ATTRIBUTES);
+        trainer.setMaxIterations(MAX_ITERATIONS);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(training != null ? training : this.epochListener);
+        if (this.warmStart){
+            trainer.setWarmStart(this.linearModel, this.scaler);
+        }
+
+        this.linearModel = trainer.train(file);
+        this.data = trainer.getStructure();
+        this.numClasses = 2;
+        this.classWeights = null;
+        this.intercepts = null;
+        this.scaler = trainer.getScaler();
+        this.threshold = calculateThreshold();
+        finishTraining(training, trainer.getNumRows());
+    }
+
+    /** Builds the classifier from a memory mapped binary dataset, see MappedDataset.
+     * The attributes are standardised if the flag is set and the on-line learning algorithm is run over the rows
+     * read from the mapped file. No header is stored in a binary dataset, so the data variable is set to null.
+     *
+     * @param dataset the mapped dataset to train on
+     */
+    public void buildClassifier(MappedDataset dataset) {
+        PerceptronMetrics.Training training = startTraining();
+        StreamingPerceptronTrainer trainer = new StreamingPerceptronTrainer();
+        trainer.setSeed(this.seed);
+        trainer.setBiasTerm(this.biasTerm);
+        trainer.setStandardise(STANDARDISE_ATTRIBUTES);
+        trainer.setMaxIterations(MAX_ITERATIONS);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(training != null ? training : this.epochListener);
+        if (this.warmStart){
+            trainer.setWarmStart(this.linearModel, this.scaler);
+        }
+
+        this.linearModel = trainer.train(dataset);
+        this.data = null;
+        this.numClasses = 2;
+        this.classWeights = null;
+        this.intercepts = null;
+        this.scaler = trainer.getScaler();
+        this.threshold = calculateThreshold();
+        finishTraining(training, dataset.numRows());
+    }
+
+    /** Starts recording a build to the metrics, if they are set
+     *
+     * @return the listener recording the build, which passes each epoch on to the epoch listener, or null
+     */
+    private PerceptronMetrics.Training startTraining(){
+        return this.metrics != null ? this.metrics.startTraining(this.epochListener) : null;
+    }
+
+    /** Records the end of a build to the metrics, if they are set
+     *
+     * @param training the listener recording the build, or null
+     * @param numRows the number of rows the build trained on
+     */
+    private static void finishTraining(PerceptronMetrics.Training training, long numRows){
+        if (training != null){
+            training.finish(numRows);
+        }
+    }
+
+    /** Updates the classifier with a single new instance, in time proportional to the number of attributes.
+     * If the flag is set, the instance is first added to the scaler's running statistics, then the on-line
+     * learning rule is applied to the values of the instance standardised with the updated statistics.
+     * If the classifier has not been built yet, a new random weight vector is generated first.
+     * A one-vs-rest classifier, or a new classifier given an instance of more than two classes, applies the
+     * one-vs-rest rule to the weights of every class instead.
+     *
+     * @param instance the new instance to learn from
+     * @throws Exception catches unhandled Weka Exceptions
+     */
+    @Override
+    public void updateClassifier(Instance instance) throws Exception {
+        long start = this.metrics != null ? System.nanoTime() : 0;
+        if (this.classWeights != null || (this.linearModel == null && instance.numClasses() > 2)){
+            boolean applied = updateMulticlass(instance);
+            if (this.metrics != null){
+                this.metrics.recordUpdate(applied, System.nanoTime() - start);
             }
-            else {
-                this.linearModel = gradientDescentTraining(this.data);
+            return;
+        }
+        int numAttributes = instance.numAttributes();
+        if (this.linearModel == null){
+            this.linearModel = initialWeights(numAttributes);
+        }
+
+        if (STANDARDISE_ATTRIBUTES){
+            if (this.scaler == null){
+                this.scaler = new StandardScaler(numAttributes);
             }
+            this.scaler.add(instance);
         }
-        if (!USE_ALTERNATIVE_ALGORITHM) {
-            this.linearModel = perceptronTraining(this.data);
+
+        int numWeights = this.linearModel.length - 1;
+        double sum = 0.0;
+        for (int attr = 0; attr < numWeights; attr++){
+            sum += this.linearModel[attr]*standardisedValue(instance, attr);
         }
-        else {
-            this.linearModel = gradientDescentTraining(this.data);
+
+        double target = instance.classValue() != 0.0 ? 1.0 : -1.0;
+        double localError = target - java.lang.Math.signum(sum);
+        double rate = 0.5*this.learningRate*localError;
+        if (rate != 0.0){
+            for (int j = 0; j < numWeights; j++){
+                this.linearModel[j] += rate*standardisedValue(instance, j);
+            }
+        }
+        this.threshold = calculateThreshold();
+        if (this.metrics != null){
+            this.metrics.recordUpdate(rate != 0.0, System.nanoTime() - start);
         }
     }
 
-    /** Predicts the class of an instance, first by applying the weight vector to the instance and standardising
-     * the attributes. The class is predicted based on whether it passes the threshold value (the sum of the weight vector)
+    /** Updates a one-vs-rest classifier with a single new instance, in time proportional to the number of attributes
+     * times the number of classes. The instance is standardised as in updateClassifier(Instance), then the weights
+     * of each class that misclassifies it are updated and the intercepts recalculated.
+     *
+     * @param instance the new instance to learn from
+     * @return true if the weights of any class were updated
+     */
+    private boolean updateMulticlass(Instance instance){
+        int numColumns = instance.numAttributes();
+        int numAttributes = numColumns - 1;
+        if (this.classWeights == null){
+            this.numClasses = instance.numClasses();
+            this.classWeights = initialClassWeights(numColumns);
+        }
+
+        if (STANDARDISE_ATTRIBUTES){
+            if (this.scaler == null){
+                this.scaler = new StandardScaler(numColumns);
+            }
+            this.scaler.add(instance);
+        }
+
+        double[] row = new double[numAttributes];
+        for (int attr = 0; attr < numAttributes; attr++){
+            row[attr] = standardisedValue(instance, attr);
+        }
+
+        boolean applied = false;
+        for (int k = 0; k < this.numClasses; k++){
+            double sum = VectorOps.dot(this.classWeights, k*numColumns, row, 0, numAttributes)
+                    + this.classWeights[k*numColumns + numAttributes];
+            double target = instance.classValue() == k ? 1.0 : -1.0;
+            double localError = target - java.lang.Math.signum(sum);
+            double rate = 0.5*this.learningRate*localError;
+            if (rate != 0.0){
+                VectorOps.axpy(rate, row, 0, this.classWeights, k*numColumns, numAttributes);
+                this.classWeights[k*numColumns + numAttributes] += rate;
+                applied = true;
+            }
+        }
+        this.intercepts = calculateIntercepts();
+        return applied;
+    }
+
+    /** Reads an attribute value of an instance, standardised with the current statistics if the flag is set
+     *
+     * @param instance the instance to read
+     * @param attr the index of the attribute
+     * @return the attribute value, standardised if required
+     */
+    private double standardisedValue(Instance instance, int attr){
+        double value = instance.value(attr);
+        if (STANDARDISE_ATTRIBUTES && attr < this.scaler.numColumns()){
+            value -= this.scaler.shift(attr);
+        }
+        return value;
+    }
+
+    /** Calculates the threshold value used to classify instances, the sum of the weight vector excluding the bias.
+     * Each standardised attribute value is the raw value minus the scaler's shift, so the standardisation is
+     * folded into the threshold here, letting classifyInstance work on the raw attribute values.
+     *
+     * @return the threshold value to compare the raw weighted sum against
+     */
+    private double calculateThreshold(){
+        int numWeights = this.linearModel.length - 1;
+        double threshold = 0.0;
+        for (int i = 0; i < numWeights; i++){
+            threshold += this.linearModel[i];
+        }
+
+        if (STANDARDISE_ATTRIBUTES && this.scaler != null){
+            for (int i = 0; i < numWeights && i < this.scaler.numColumns(); i++){
+                threshold += this.linearModel[i]*this.scaler.shift(i);
+            }
+        }
+        return threshold;
+    }
+
+    /** Calculates the amount added to the raw weighted sum of each class of a one-vs-rest classifier, its bias less
+     * its weights applied to the scaler's shifts, folding the standardisation in as calculateThreshold() does
+     *
+     * @return the intercept of each class
+     */
+    private double[] calculateIntercepts(){
+        int numColumns = this.classWeights.length/this.numClasses;
+        int numAttributes = numColumns - 1;
+        double[] intercepts = new double[this.numClasses];
+        for (int k = 0; k < this.numClasses; k++){
+            intercepts[k] = this.classWeights[k*numColumns + numAttributes];
+            if (STANDARDISE_ATTRIBUTES && this.scaler != null){
+                for (int i = 0; i < numAttributes && i < this.scaler.numColumns(); i++){
+                    intercepts[k] -= this.classWeights[k*numColumns + i]*this.scaler.shift(i);
+                }
+            }
+        }
+        return intercepts;
+    }
+
+    /** Picks the class of a one-vs-rest classifier scoring highest, ties going to the lowest class
+     *
+     * @param scores the raw weighted sum of each class, to which the intercepts are added in place
+     * @return the predicted class
+     */
+    private int bestClass(double[] scores){
+        int best = 0;
+        for (int k = 0; k < this.numClasses; k++){
+            scores[k] += this.intercepts[k];
+            if (scores[k] > scores[best]){
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    /** Predicts the class of an instance by applying the weight vector to the raw attribute values.
+     * The standardisation is already folded into the threshold value (the sum of the weight vector), which is
+     * calculated once when the classifier is built, so the instance is only read, never modified.
+     * For a SparseInstance only its non-zero values are read.
+     * If metrics are set, the time taken is recorded to them.
      *
      * @param instance the instance to classify
      * @return the predicted class
      */
     public double classifyInstance(Instance instance){
+        if (this.metrics == null){
+            return predict(instance, scoresBuffer());
+        }
+        long start = System.nanoTime();
+        double predictedClass = predict(instance, scoresBuffer());
+        this.metrics.recordPrediction(System.nanoTime() - start);
+        return predictedClass;
+    }
+
+    /** Predicts the class of an instance, see classifyInstance(Instance)
+     *
+     * @param instance the instance to classify
+     * @param scores a scratch array of at least one value per class, unused between two classes
+     * @return the predicted class
+     */
+    private double predict(Instance instance, double[] scores){
+        if (this.classWeights != null){
+            return predictMulticlass(instance, scores);
+        }
         double predictedClass;
         double weightedSum = 0.0;
 
-        if (STANDARDISE_ATTRIBUTES) {
-            for (int i = 0; i < instance.numAttributes() - 1; i++) {
-                if (i < means.length - 1 && i < standardDeviations.length - 1) {
-                    double standardised = instance.value(i) - means[i] / standardDeviations[i];
-                    instance.setValue(i, standardised);
+        if (instance instanceof SparseInstance){
+            weightedSum = SparseInstances.dot(instance, this.linearModel, this.linearModel.length - 1);
+        }
+        else {
+            for (int i = 0; i < this.linearModel.length - 1; i++){
+                weightedSum += instance.value(i)*this.linearModel[i];
+            }
+        }
+
+        if (weightedSum > this.threshold){
+            predictedClass = 1;
+        }
+        else {
+            predictedClass = 0;
+        }
+        return predictedClass;
+    }
+
+    /** Predicts the class of an instance with a one-vs-rest classifier, reading only the non-zero values of a
+     * SparseInstance
+     *
+     * @param instance the instance to classify
+     * @param scores a scratch array of at least one value per class to sum the scores in
+     * @return the predicted class
+     */
+    private double predictMulticlass(Instance instance, double[] scores){
+        int numColumns = this.classWeights.length/this.numClasses;
+        int numAttributes = numColumns - 1;
+        Arrays.fill(scores, 0, this.numClasses, 0.0);
+
+        if (instance instanceof SparseInstance){
+            for (int p = 0; p < instance.numValues(); p++){
+                int index = instance.index(p);
+                if (index < numAttributes){
+                    for (int k = 0; k < this.numClasses; k++){
+                        scores[k] += instance.valueSparse(p)*this.classWeights[k*numColumns + index];
+                    }
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < numAttributes; i++){
+                double value = instance.value(i);
+                for (int k = 0; k < this.numClasses; k++){
+                    scores[k] += value*this.classWeights[k*numColumns + i];
                 }
             }
         }
+        return bestClass(scores);
+    }
 
-        for (int i = 0; i < this.linearModel.length - 1; i++){
-            instance.setValue(i, instance.value(i)*this.linearModel[i]);
-            weightedSum += instance.value(i);
+    /** Gets this thread's scratch array for the class scores of a one-vs-rest classifier, so classifying an instance
+     * allocates nothing once the thread has classified one before
+     *
+     * @return the scratch array, or null between two classes
+     */
+    private double[] scoresBuffer(){
+        if (this.classWeights == null){
+            return null;
         }
+        ThreadLocal<double[]> buffer = this.scoresBuffer;
+        if (buffer == null){
+            buffer = new ThreadLocal<>();
+            this.scoresBuffer = buffer;
+        }
+        double[] scores = buffer.get();
+        if (scores == null || scores.length < this.numClasses){
+            scores = new double[this.numClasses];
+            buffer.set(scores);
+        }
+        return scores;
+    }
 
-        double threshold = 0.0;
+    /** @return the number of classes, more than two for a one-vs-rest classifier */
+    int getNumClasses(){
+        return this.numClasses;
+    }
+
+    /** @return the weight vector of the linear model, with the bias last */
+    double[] getLinearModel(){
+        return this.linearModel;
+    }
+
+    /** @return the threshold the raw weighted sum is compared against, with the standardisation folded in */
+    double getThreshold(){
+        return this.threshold;
+    }
+
+    /** @return the scaler the attributes were standardised with, or null if they were not */
+    StandardScaler getScaler(){
+        return this.scaler;
+    }
+
+    /** Sets a trained linear model, as read back from a model file, see ModelFile
+     *
+     * @param linearModel the weight vector, with the bias last
+     * @param threshold the threshold the raw weighted sum is compared against, with the standardisation folded in
+     * @param scaler the scaler the attributes were standardised with, or null if they were not
+     */
+    void setModel(double[] linearModel, double threshold, StandardScaler scaler){
+        this.linearModel = linearModel;
+        this.threshold = threshold;
+        this.scaler = scaler;
+        this.STANDARDISE_ATTRIBUTES = scaler != null;
+        this.data = null;
+        this.numClasses = 2;
+        this.classWeights = null;
+        this.intercepts = null;
+    }
+
+    /** Predicts the class of a row of attribute values read through an index mapping, so a perceptron trained on a
+     * subset of the attributes can classify a full row without it being copied or modified
+     *
+     * @param values the full row of attribute values
+     * @param indices the position in the row of each attribute the perceptron was trained on
+     * @param scores a scratch array of at least one value per class, unused between two classes
+     * @return the predicted class
+     */
+    double classifyValues(double[] values, int[] indices, double[] scores){
+        return classifyValues(values, 0, indices, scores);
+    }
+
+    /** Predicts the class of a row of attribute values stored part way through an array, read through an index
+     * mapping, see classifyValues(double[], int[], double[])
+     *
+     * @param values the array holding the full row of attribute values
+     * @param offset the index of the first value of the row
+     * @param indices the position in the row of each attribute the perceptron was trained on
+     * @param scores a scratch array of at least one value per class, unused between two classes
+     * @return the predicted class
+     */
+    double classifyValues(double[] values, int offset, int[] indices, double[] scores){
+        if (this.classWeights != null){
+            int numColumns = this.classWeights.length/this.numClasses;
+            for (int k = 0; k < this.numClasses; k++){
+                double score = 0.0;
+                for (int i = 0; i < numColumns - 1; i++){
+                    score += values[offset + indices[i]]*this.classWeights[k*numColumns + i];
+                }
+                scores[k] = score;
+            }
+            return bestClass(scores);
+        }
+        double weightedSum = 0.0;
         for (int i = 0; i < this.linearModel.length - 1; i++){
-            threshold += linearModel[i];
+            weightedSum += values[offset + indices[i]]*this.linearModel[i];
         }
+        return weightedSum > this.threshold ? 1 : 0;
+    }
 
-        if (weightedSum > threshold){
-            predictedClass = 1;
+    /** Predicts the class of a sparse instance read through an index mapping, so a perceptron trained on a subset of
+     * the attributes can classify it reading only the non-zero values of the instance
+     *
+     * @param instance the sparse instance to classify
+     * @param indices the attribute index of each attribute the perceptron was trained on, in ascending order
+     * @param scores a scratch array of at least one value per class, unused between two classes
+     * @return the predicted class
+     */
+    double classifySparse(Instance instance, int[] indices, double[] scores){
+        if (this.classWeights != null){
+            int numColumns = this.classWeights.length/this.numClasses;
+            Arrays.fill(scores, 0, this.numClasses, 0.0);
+            for (int p = 0; p < instance.numValues(); p++){
+                int position = Arrays.binarySearch(indices, 0, numColumns - 1, instance.index(p));
+                if (position >= 0){
+                    for (int k = 0; k < this.numClasses; k++){
+                        scores[k] += instance.valueSparse(p)*this.classWeights[k*numColumns + position];
+                    }
+                }
+            }
+            return bestClass(scores);
         }
-        else {
-            predictedClass = 0;
+        int numWeights = this.linearModel.length - 1;
+        double weightedSum = 0.0;
+        for (int k = 0; k < instance.numValues(); k++){
+            int position = Arrays.binarySearch(indices, 0, numWeights, instance.index(k));
+            if (position >= 0){
+                weightedSum += instance.valueSparse(k)*this.linearModel[position];
+            }
+        }
+        return weightedSum > this.threshold ? 1 : 0;
+    }
+
+    /** Predicts the class of every instance in a dataset, scoring all of them together as one batch
+     * Sparse data is scored one instance at a time from its non-zero values rather than expanded into a dense batch.
+     *
+     * @param data the instances to classify
+     * @return the predicted class of each instance
+     */
+    public double[] classifyBatch(Instances data){
+        if (SparseInstances.isSparse(data)){
+            double[] predictions = new double[data.numInstances()];
+            double[] scores = this.classWeights != null ? new double[this.numClasses] : null;
+            for (int i = 0; i < predictions.length; i++){
+                predictions[i] = predict(data.instance(i), scores);
+            }
+            return predictions;
+        }
+        DenseInstances dense = DenseInstances.fromInstances(data);
+        double[] predictions = new double[dense.numRows()];
+        classifyBatch(dense.values(), dense.numRows(), dense.numColumns(), predictions);
+        return predictions;
+    }
+
+    /** Predicts the class of a batch of rows stored in a row-major array.
+     * The weighted sums of all rows are calculated as one blocked matrix-vector product, then compared with the threshold.
+     * A one-vs-rest classifier scores each row against the weights of every class as one matrix-vector product.
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    @Override
+    public void classifyBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        if (this.classWeights != null){
+            classifyBatchMulticlass(rows, offset, nRows, nCols, out);
+            return;
+        }
+        int numWeights = this.linearModel.length - 1;
+        if (nCols < numWeights){
+            throw new IllegalArgumentException("Rows have " + nCols + " values but the model needs " + numWeights);
+        }
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        VectorOps.gemv(rows, offset, nRows, nCols, this.linearModel, 0, numWeights, out);
+        for (int i = 0; i < nRows; i++){
+            out[i] = out[i] > this.threshold ? 1 : 0;
+        }
+    }
+
+    /** Scores a batch of rows, the margin of each row from the threshold mapped onto [0, 1], see
+     * BatchClassifier.linearScore(double, double). A one-vs-rest classifier scores with its predicted classes.
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to score
+     * @param nCols the number of values stored for each row
+     * @param out the array the scores are written to
+     */
+    @Override
+    public void scoreBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        if (this.classWeights != null){
+            classifyBatchMulticlass(rows, offset, nRows, nCols, out);
+            return;
+        }
+        int numWeights = this.linearModel.length - 1;
+        if (nCols < numWeights){
+            throw new IllegalArgumentException("Rows have " + nCols + " values but the model needs " + numWeights);
+        }
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        double norm = Math.sqrt(VectorOps.dot(this.linearModel, 0, this.linearModel, 0, numWeights));
+        VectorOps.gemv(rows, offset, nRows, nCols, this.linearModel, 0, numWeights, out);
+        for (int i = 0; i < nRows; i++){
+            out[i] = BatchClassifier.linearScore(out[i] - this.threshold, norm);
+        }
+    }
+
+    /** Predicts the class of a batch of rows with a one-vs-rest classifier, see classifyBatch(double[], int, int, int, double[])
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    private void classifyBatchMulticlass(double[] rows, int offset, int nRows, int nCols, double[] out){
+        int numColumns = this.classWeights.length/this.numClasses;
+        if (nCols < numColumns - 1){
+            throw new IllegalArgumentException("Rows have " + nCols + " values but the model needs " + (numColumns - 1));
+        }
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        double[] scores = new double[this.numClasses];
+        for (int r = 0; r < nRows; r++){
+            out[r] = MulticlassPerceptronTrainer.predict(this.classWeights, this.intercepts, this.numClasses, numColumns,
+                    rows, offset + r*nCols, scores);
         }
-        return predictedClass;
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,15 @@
+/** Interface for receiving the metrics of each epoch of training, for example to log them or plot a learning curve
+ *  The listener is called on the thread running the training, once at the end of every epoch.
+ */
+public interface EpochListener {
+
+    /** Reports the metrics of an epoch that has just finished
+     *
+     * @param epoch the number of the epoch, starting from 1
+     * @param errors the number of rows misclassified during the epoch
+     * @param weightNorm the Euclidean norm of the weight vector at the end of the epoch
+     * @param epochNanos the wall-clock time the epoch took, in nanoseconds
+     */
+    void epochFinished(int epoch, int errors, double weightNorm, long epochNanos);
+
+}
@@ -0,0 +1,218 @@
+/** Class accumulating the performance of a classifier over a stream of predictions
+ *  Predictions are added in batches straight from primitive arrays of class values, as produced by batch scoring,
+ *  so evaluating any number of predictions allocates nothing per row. Everything is counted in one pass into a
+ *  confusion matrix, from which the accuracy, per-class recall, true positive and negative rates and balanced
+ *  accuracy are read, and, for two classes, a histogram of scores from which the AUC is read.
+ *  Accumulators over different rows can be merged, so each thread evaluates its own share of the rows and the
+ *  accumulators are merged once at the end, with no sharing between threads while evaluating.
+ *  For two classes, class 1 is the positive class.
+ */
+public class EvaluationAccumulator {
+
+    /** The number of equal-width bins the scores in [0, 1] are counted in to find the AUC */
+    static final int SCORE_BINS = 1000;
+
+    private final int numClasses;
+    private final long[] confusion;
+    private long[] positiveScores;
+    private long[] negativeScores;
+
+    /** Creates an empty accumulator
+     *
+     * @param numClasses the number of classes, whose values are 0 to numClasses - 1
+     */
+    public EvaluationAccumulator(int numClasses){
+        if (numClasses < 2){
+            throw new IllegalArgumentException("At least two classes are needed, not " + numClasses);
+        }
+        this.numClasses = numClasses;
+        this.confusion = new long[numClasses*numClasses];
+    }
+
+    /** Adds one prediction
+     *
+     * @param actual the actual class value
+     * @param predicted the predicted class value
+     */
+    public void add(double actual, double predicted){
+        this.confusion[classIndex(actual)*this.numClasses + classIndex(predicted)]++;
+    }
+
+    /** Adds a batch of predictions
+     *
+     * @param actual the array holding the actual class values
+     * @param actualOffset the index of the first actual class value
+     * @param predicted the array holding the predicted class values
+     * @param predictedOffset the index of the first predicted class value
+     * @param length the number of predictions to add
+     */
+    public void add(double[] actual, int actualOffset, double[] predicted, int predictedOffset, int length){
+        for (int i = 0; i < length; i++){
+            this.confusion[classIndex(actual[actualOffset + i])*this.numClasses
+                    + classIndex(predicted[predictedOffset + i])]++;
+        }
+    }
+
+    /** Adds a batch of scores for the AUC, for two classes only. A score is the classifier's confidence that the row
+     * is of class 1, e.g. the proportion of an ensemble's votes for class 1, or a predicted class of 0 or 1.
+     * Scores are counted in SCORE_BINS bins over [0, 1], values outside the range counting in the end bins, and
+     * scores in the same bin count as ties.
+     *
+     * @param actual the array holding the actual class values
+     * @param actualOffset the index of the first actual class value
+     * @param scores the array holding the scores
+     * @param scoresOffset the index of the first score
+     * @param length the number of scores to add
+     */
+    public void addScores(double[] actual, int actualOffset, double[] scores, int scoresOffset, int length){
+        if (this.numClasses != 2){
+            throw new IllegalStateException("The AUC is only found for two classes");
+        }
+        if (this.positiveScores == null){
+            this.positiveScores = new long[SCORE_BINS];
+            this.negativeScores = new long[SCORE_BINS];
+        }
+        for (int i = 0; i < length; i++){
+            int bin = (int) Math.min(SCORE_BINS - 1, Math.max(0.0, scores[scoresOffset + i]*SCORE_BINS));
+            if (actual[actualOffset + i] != 0.0){
+                this.positiveScores[bin]++;
+            }
+            else {
+                this.negativeScores[bin]++;
+            }
+        }
+    }
+
+    /** Merges the counts of another accumulator, over different rows, into this one
+     *
+     * @param other the accumulator to merge in
+     */
+    public void merge(EvaluationAccumulator other){
+        if (other.numClasses != this.numClasses){
+            throw new IllegalArgumentException("Cannot merge " + other.numClasses + " classes into " + this.numClasses);
+        }
+        for (int k = 0; k < this.confusion.length; k++){
+            this.confusion[k] += other.confusion[k];
+        }
+        if (other.positiveScores != null){
+            if (this.positiveScores == null){
+                this.positiveScores = new long[SCORE_BINS];
+                this.negativeScores = new long[SCORE_BINS];
+            }
+            for (int b = 0; b < SCORE_BINS; b++){
+                this.positiveScores[b] += other.positiveScores[b];
+                this.negativeScores[b] += other.negativeScores[b];
+            }
+        }
+    }
+
+    /** @return the number of classes */
+    public int numClasses(){
+        return this.numClasses;
+    }
+
+    /** @return the number of predictions added */
+    public long count(){
+        long count = 0;
+        for (long cell : this.confusion){
+            count += cell;
+        }
+        return count;
+    }
+
+    /** @return the number of predictions matching the actual class */
+    public long correct(){
+        long correct = 0;
+        for (int c = 0; c < this.numClasses; c++){
+            correct += this.confusion[c*this.numClasses + c];
+        }
+        return correct;
+    }
+
+    /** @return the proportion of predictions matching the actual class */
+    public double accuracy(){
+        long count = count();
+        return count == 0 ? 0.0 : (double) correct()/count;
+    }
+
+    /** @return the confusion matrix, indexed by actual class then predicted class */
+    public long[][] confusionMatrix(){
+        long[][] matrix = new long[this.numClasses][this.numClasses];
+        for (int actual = 0; actual < this.numClasses; actual++){
+            System.arraycopy(this.confusion, actual*this.numClasses, matrix[actual], 0, this.numClasses);
+        }
+        return matrix;
+    }
+
+    /** @param actual the actual class
+     *  @return the proportion of rows of the class predicted as the class, or 0 if there are no rows of the class
+     */
+    public double recall(int actual){
+        long total = 0;
+        for (int predicted = 0; predicted < this.numClasses; predicted++){
+            total += this.confusion[actual*this.numClasses + predicted];
+        }
+        return total == 0 ? 0.0 : (double) this.confusion[actual*this.numClasses + actual]/total;
+    }
+
+    /** @return the true positive rate, the recall of class 1, unlike EvaluationTools.calculateTPR, see there */
+    public double truePositiveRate(){
+        return recall(1);
+    }
+
+    /** @return the true negative rate, the recall of class 0, unlike EvaluationTools.calculateTNR, see there */
+    public double trueNegativeRate(){
+        return recall(0);
+    }
+
+    /** @return the balanced accuracy, the mean recall over the classes with any rows */
+    public double balancedAccuracy(){
+        double sum = 0.0;
+        int present = 0;
+        for (int actual = 0; actual < this.numClasses; actual++){
+            for (int predicted = 0; predicted < this.numClasses; predicted++){
+                if (this.confusion[actual*this.numClasses + predicted] != 0){
+                    sum += recall(actual);
+                    present++;
+                    break;
+                }
+            }
+        }
+        return present == 0 ? 0.0 : sum/present;
+    }
+
+    /** Calculates the area under the ROC curve from the scores added, the probability that a random row of class 1
+     * scores higher than a random row of class 0, with ties counting a half
+     *
+     * @return the AUC, or NaN if no scores were added for one of the classes
+     */
+    public double auc(){
+        if (this.positiveScores == null){
+            return Double.NaN;
+        }
+        double area = 0.0;
+        long positives = 0;
+        long negativesBelow = 0;
+        for (int b = 0; b < SCORE_BINS; b++){
+            area += this.positiveScores[b]*(negativesBelow + 0.5*this.negativeScores[b]);
+            positives += this.positiveScores[b];
+            negativesBelow += this.negativeScores[b];
+        }
+        if (positives == 0 || negativesBelow == 0){
+            return Double.NaN;
+        }
+        return area/((double) positives*negativesBelow);
+    }
+
+    /** @param classValue a class value
+     *  @return the class value as an index into the confusion matrix
+     */
+    private int classIndex(double classValue){
+        int index = (int) classValue;
+        if (index < 0 || index >= this.numClasses || index != classValue){
+            throw new IllegalArgumentException("Class value " + classValue + " is not one of " + this.numClasses + " classes");
+        }
+        return index;
+    }
+
+}
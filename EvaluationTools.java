@@ -1,10 +1,113 @@
-import weka.core.Instance;
 import weka.core.Instances;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /** Class providing static methods to calculate various performance metrics for a classifier
+ *  A classifier is evaluated by streaming a dense snapshot through its batch scoring in blocks, counting every block
+ *  straight into an EvaluationAccumulator, so no Instance objects or per-row results are created. Large snapshots are
+ *  split into shards evaluated concurrently, each into its own accumulator, and the accumulators merged in shard order.
  */
 public class EvaluationTools {
 
+    /** The number of rows in each shard when evaluating in parallel */
+    static final int SHARD_ROWS = 65536;
+
+    /** The number of rows scored together in each call to the classifier */
+    static final int BLOCK_ROWS = 4096;
+
+    /** Evaluates a classifier on every row of a dense snapshot, see evaluate(BatchClassifier, DenseInstances, int, ExecutorService)
+     *
+     * @param classifier the classifier to evaluate
+     * @param data the test cases, holding the actual class of each row
+     * @param numClasses the number of classes
+     * @return the accumulated performance
+     */
+    public static EvaluationAccumulator evaluate(BatchClassifier classifier, DenseInstances data, int numClasses){
+        return evaluate(classifier, data, numClasses, null);
+    }
+
+    /** Evaluates a classifier on every row of a dense snapshot. The rows are scored in blocks of BLOCK_ROWS rows and
+     * each block of predictions added to an accumulator as it is scored. Snapshots larger than one shard are split into
+     * shards of SHARD_ROWS rows evaluated concurrently, and the accumulators merged in shard order.
+     * For two classes each block is scored instead, see BatchClassifier.scoreBatch, and the predicted classes found
+     * from the scores with the classifier's own rule, so a single pass gives both the predictions and the AUC.
+     *
+     * @param classifier the classifier to evaluate, which must be safe to call from several threads at once
+     * @param data the test cases, holding the actual class of each row
+     * @param numClasses the number of classes
+     * @param executor the executor the shards are evaluated on, the common fork-join pool if null
+     * @return the accumulated performance
+     */
+    public static EvaluationAccumulator evaluate(BatchClassifier classifier, DenseInstances data, int numClasses,
+                                                 ExecutorService executor){
+        int numShards = Math.max(1, (data.numRows() + SHARD_ROWS - 1)/SHARD_ROWS);
+        if (numShards == 1){
+            return evaluateRows(classifier, data, numClasses, 0, data.numRows());
+        }
+
+        List<Callable<EvaluationAccumulator>> tasks = new ArrayList<>(numShards);
+        for (int s = 0; s < numShards; s++){
+            int start = s*SHARD_ROWS;
+            int end = Math.min(data.numRows(), start + SHARD_ROWS);
+            tasks.add(() -> evaluateRows(classifier, data, numClasses, start, end));
+        }
+
+        ExecutorService pool = executor != null ? executor : ForkJoinPool.commonPool();
+        EvaluationAccumulator accumulator = new EvaluationAccumulator(numClasses);
+        try {
+            for (Future<EvaluationAccumulator> future : pool.invokeAll(tasks)){
+                accumulator.merge(future.get());
+            }
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Evaluating the classifier was interrupted", e);
+        }
+        catch (ExecutionException e){
+            throw new IllegalStateException("Evaluating the classifier failed", e.getCause());
+        }
+        return accumulator;
+    }
+
+    /** Evaluates a classifier on a range of rows of a dense snapshot, one block at a time, each block scored in place
+     *
+     * @param classifier the classifier to evaluate
+     * @param data the test cases
+     * @param numClasses the number of classes
+     * @param start the first row
+     * @param end the row after the last row
+     * @return the accumulated performance over the rows
+     */
+    private static EvaluationAccumulator evaluateRows(BatchClassifier classifier, DenseInstances data, int numClasses,
+                                                      int start, int end){
+        EvaluationAccumulator accumulator = new EvaluationAccumulator(numClasses);
+        int numColumns = data.numColumns();
+        int blockRows = Math.min(BLOCK_ROWS, end - start);
+        double[] predictions = new double[Math.max(1, blockRows)];
+        double[] scores = numClasses == 2 ? new double[Math.max(1, blockRows)] : null;
+
+        for (int first = start; first < end; first += blockRows){
+            int numRows = Math.min(blockRows, end - first);
+            if (scores != null){
+                classifier.scoreBatch(data.values(), data.offset(first), numRows, numColumns, scores);
+                for (int r = 0; r < numRows; r++){
+                    predictions[r] = classifier.classifyScore(scores[r]);
+                }
+                accumulator.addScores(data.classValues(), first, scores, 0, numRows);
+            }
+            else {
+                classifier.classifyBatch(data.values(), data.offset(first), numRows, numColumns, predictions);
+            }
+            accumulator.add(data.classValues(), first, predictions, 0, numRows);
+        }
+        return accumulator;
+    }
+
     /** Calculates the accuracy of the results generated from a classifier
      * Assumes that the parameters are of equal length
      *
@@ -13,41 +116,46 @@ public class EvaluationTools {
      * @return the accuracy as a double
      */
     public static double calculateAccuracy(Instances data, double[] results){
-        int correct = 0;
-        for (int i = 0; i < results.length; i++){
-            if (results[i] == data.get(i).classValue()){
-                correct++;
-            }
-        }
-        return (double) correct / (double) results.length;
+        return accumulate(data, results).accuracy();
     }
 
-    /** Forms a confusion matrix from the results generated by a classifier
+    /** Forms a confusion matrix from the results generated by a classifier, with one row and one column per class
      *
      * @param data the test cases from the dataset as an Instances object
      * @param results an array containing the predicted classes generated by the classifier for this dataset
-     * @return the confusionMatrix as a matrix of doubles
+     * @return the confusionMatrix as a matrix of doubles, indexed by predicted class then actual class
      */
     public static double[][] makeConfusionMatrix(Instances data, double[] results){
-        int c = results.length - 1;
-        double[][] confusionMatrix = new double[c][c];
-
-        for (int i = 0; i < c; i++){
-            int predicted = (int) results[i];
-            int actual;
-            Instance instance = data.instance(i);
-            if (instance.classValue() != 0.0){
-                actual = 1;
-            }
-            else {
-                actual = 0;
+        long[][] counts = accumulate(data, results).confusionMatrix();
+        double[][] confusionMatrix = new double[counts.length][counts.length];
+
+        for (int actual = 0; actual < counts.length; actual++){
+            for (int predicted = 0; predicted < counts.length; predicted++){
+                confusionMatrix[predicted][actual] = counts[actual][predicted];
             }
-            confusionMatrix[predicted][actual] += 1;
         }
         return confusionMatrix;
     }
 
-    /** Calculates the true positive rate from a confusionMatrix
+    /** Counts the results generated by a classifier against the actual classes of the test cases
+     *
+     * @param data the test cases from the dataset as an Instances object
+     * @param results an array containing the predicted classes generated by the classifier for this dataset
+     * @return the accumulated performance
+     */
+    private static EvaluationAccumulator accumulate(Instances data, double[] results){
+        EvaluationAccumulator accumulator = new EvaluationAccumulator(Math.max(2, data.numClasses()));
+        for (int i = 0; i < results.length; i++){
+            accumulator.add(data.instance(i).classValue(), results[i]);
+        }
+        return accumulator;
+    }
+
+    /** Calculates the true positive rate from a confusionMatrix, as this method has always defined it: with class 0 as
+     * the positive class, cell [0][0] over the sum of row 0, which for a matrix from makeConfusionMatrix is the
+     * proportion of the rows predicted as class 0 that are of class 0. This differs from
+     * EvaluationAccumulator.truePositiveRate, which is the recall of class 1, so the two give different values for
+     * the same predictions.
      *
      * @param confusionMatrix the confusionMatrix generated for a classifiers results on a dataset
      * @return the true positive rate
@@ -56,7 +164,10 @@ public class EvaluationTools {
         return confusionMatrix[0][0]/(confusionMatrix[0][0] + confusionMatrix[0][1]);
     }
 
-    /** Calculates the true negative rate from a confusionMatrix
+    /** Calculates the true negative rate from a confusionMatrix, as this method has always defined it: cell [1][1]
+     * over the sum of row 1, which for a matrix from makeConfusionMatrix is the proportion of the rows predicted as
+     * class 1 that are of class 1. This differs from EvaluationAccumulator.trueNegativeRate, which is the recall of
+     * class 0.
      *
      * @param confusionMatrix the confusionMatrix generated for a classifiers results on a dataset
      * @return the true negative rate
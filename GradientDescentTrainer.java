@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** Class carrying out the off-line learning rule for a linear perceptron over a primitive snapshot of the data
+ *  Each epoch walks the data in mini-batches (the whole dataset by default). A mini-batch is split into fixed shards
+ *  of SHARD_ROWS rows which are worked on concurrently, each accumulating its weight change into its own buffer.
+ *  The buffers are then added together in shard order, so the model built depends only on the data and the
+ *  settings, never on the number of threads or how the shards were scheduled.
+ *  Training stops after the maximum number of iterations, or earlier as decided by the StoppingPolicy: by default
+ *  after an epoch with no errors.
+ */
+public class GradientDescentTrainer {
+
+    /** The number of rows in each shard of a mini-batch */
+    static final int SHARD_ROWS = 4096;
+
+    private double learningRate = 1.0;
+    private int maxIterations = 1000;
+    private int batchSize = 0;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private EpochListener epochListener;
+    private ExecutorService executor;
+    private boolean parallel = true;
+    private int epochsRun;
+
+    /** @param learningRate the learning rate applied to the weight change */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /** @param maxIterations the maximum number of epochs to run */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /** @param batchSize the number of rows in each mini-batch, or 0 to update the weights once per epoch */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /** @param stoppingPolicy the policy deciding when training stops before the maximum number of iterations */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** @param epochListener the listener the metrics of each epoch are reported to, or null */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** @param executor the executor the shards are worked on, the common fork-join pool if not set */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** @param parallel false to work on the shards one after another on the calling thread, as a task already running
+     *                 on an executor must, since waiting on shards queued behind it on a fixed pool never finishes */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /** @return the number of epochs run by the last call to train */
+    public int getEpochsRun() {
+        return this.epochsRun;
+    }
+
+    /** Trains the weight vector on the data, updating it in place
+     *
+     * @param data the dataset to train on
+     * @param weightVector the initial weight vector, one weight per column plus the bias
+     * @return the final weight vector
+     */
+    public double[] train(DenseInstances data, double[] weightVector){
+        return train(data, null, weightVector);
+    }
+
+    /** Trains the weight vector on a subset of the rows of the data, updating it in place
+     *
+     * @param data the dataset to train on
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param weightVector the initial weight vector, one weight per column plus the bias
+     * @return the final weight vector
+     */
+    public double[] train(DenseInstances data, int[] rows, double[] weightVector){
+        int numRows = rows != null ? rows.length : data.numRows();
+        int numWeights = weightVector.length - 1;
+        int batchRows = this.batchSize > 0 ? Math.min(this.batchSize, numRows) : numRows;
+        int maxShards = Math.max(1, (batchRows + SHARD_ROWS - 1)/SHARD_ROWS);
+
+        double[][] partials = new double[maxShards][numWeights];
+        double[] shardErrors = new double[maxShards];
+        double[] shardLosses = new double[maxShards];
+
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+        this.epochsRun = 0;
+
+        while (this.epochsRun < this.maxIterations){
+            this.epochsRun++;
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int start = 0; start < numRows; start += batchRows){
+                int end = Math.min(numRows, start + batchRows);
+                int numShards = (end - start + SHARD_ROWS - 1)/SHARD_ROWS;
+
+                accumulate(data, rows, weightVector, start, end, numShards, partials, shardErrors, shardLosses);
+
+                for (int s = 0; s < numShards; s++){
+                    VectorOps.axpy(1.0, partials[s], 0, weightVector, 0, numWeights);
+                    errors += (int) shardErrors[s];
+                    loss += shardLosses[s];
+                }
+            }
+
+            if (run.epochFinished(errors, loss, weightVector)){
+                break;
+            }
+        }
+
+        return weightVector;
+    }
+
+    /** Calculates the weight change of each shard of a mini-batch, in parallel when there is more than one shard and
+     * parallel work is enabled. Run one after another, the shards are still added together in the same order, so the
+     * model built is the same either way.
+     *
+     * @param data the dataset being trained on
+     * @param rows the indices of the rows being trained on, or null for every row
+     * @param weightVector the current weight vector, only read
+     * @param start the position of the first row of the mini-batch
+     * @param end the position after the last row of the mini-batch
+     * @param numShards the number of shards the mini-batch is split into
+     * @param partials the weight change buffer of each shard
+     * @param shardErrors the number of misclassified rows of each shard
+     * @param shardLosses the squared error of each shard
+     */
+    private void accumulate(DenseInstances data, int[] rows, double[] weightVector, int start, int end, int numShards,
+                            double[][] partials, double[] shardErrors, double[] shardLosses){
+        if (numShards == 1 || !this.parallel){
+            for (int s = 0; s < numShards; s++){
+                int shardStart = start + s*SHARD_ROWS;
+                int shardEnd = Math.min(end, shardStart + SHARD_ROWS);
+                accumulateShard(data, rows, weightVector, shardStart, shardEnd, partials[s], shardErrors, shardLosses, s);
+            }
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(numShards);
+        for (int s = 0; s < numShards; s++){
+            int shard = s;
+            int shardStart = start + s*SHARD_ROWS;
+            int shardEnd = Math.min(end, shardStart + SHARD_ROWS);
+            tasks.add(() -> {
+                accumulateShard(data, rows, weightVector, shardStart, shardEnd, partials[shard], shardErrors, shardLosses, shard);
+                return null;
+            });
+        }
+
+        ExecutorService pool = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)){
+                future.get();
+            }
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Training was interrupted", e);
+        }
+        catch (ExecutionException e){
+            throw new IllegalStateException("Training failed", e.getCause());
+        }
+    }
+
+    /** Calculates the weight change for one shard of rows using the off-line learning rule
+     *
+     * @param data the dataset being trained on
+     * @param rows the indices of the rows being trained on, or null for every row
+     * @param weightVector the current weight vector, only read
+     * @param start the position of the first row of the shard
+     * @param end the position after the last row of the shard
+     * @param weightChange the buffer the weight change is written to
+     * @param shardErrors the number of misclassified rows of each shard
+     * @param shardLosses the squared error of each shard
+     * @param shard the index of the shard
+     */
+    private void accumulateShard(DenseInstances data, int[] rows, double[] weightVector, int start, int end, double[] weightChange,
+                                 double[] shardErrors, double[] shardLosses, int shard){
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        int numColumns = data.numColumns();
+        int numWeights = weightChange.length;
+        Arrays.fill(weightChange, 0.0);
+
+        int errors = 0;
+        double loss = 0.0;
+        for (int p = start; p < end; p++){
+            int i = rows != null ? rows[p] : p;
+            int offset = data.offset(i);
+            double sum = VectorOps.dot(weightVector, 0, values, offset, numColumns);
+
+            double predictedClass = java.lang.Math.signum(sum);
+            double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+            double localError = target - predictedClass;
+
+            if (localError != 0.0){
+                errors++;
+                loss += localError*localError;
+                VectorOps.axpy(0.5*this.learningRate*localError, values, offset, weightChange, 0, numWeights);
+            }
+        }
+
+        shardErrors[shard] = errors;
+        shardLosses[shard] = loss;
+    }
+
+}
@@ -0,0 +1,86 @@
+import java.io.Serializable;
+
+/** Interface for a kernel function over two rows of attribute values, used by the KernelPerceptron
+ *  The kernels offered are functions of the dot product of the two rows and their squared norms, so a kernel value
+ *  costs one dot product, and the squared norm of each support vector is found once when it is stored.
+ */
+public interface Kernel extends Serializable {
+
+    /** Calculates the kernel value of two rows
+     *
+     * @param dot the dot product of the two rows
+     * @param squaredNormA the squared norm of the first row
+     * @param squaredNormB the squared norm of the second row
+     * @return the kernel value
+     */
+    double value(double dot, double squaredNormA, double squaredNormB);
+
+    /** @param gamma the width of the kernel, the larger the narrower
+     *  @return the radial basis function kernel exp(-gamma*|a - b|^2)
+     */
+    static Kernel rbf(double gamma){
+        return new Rbf(gamma);
+    }
+
+    /** @param degree the degree of the polynomial
+     *  @param coef0 the constant added to the dot product
+     *  @return the polynomial kernel (a.b + coef0)^degree
+     */
+    static Kernel polynomial(int degree, double coef0){
+        return new Polynomial(degree, coef0);
+    }
+
+    /** The radial basis function kernel, exp(-gamma*|a - b|^2) */
+    final class Rbf implements Kernel {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double gamma;
+
+        Rbf(double gamma){
+            if (gamma <= 0.0){
+                throw new IllegalArgumentException("Gamma must be positive, not " + gamma);
+            }
+            this.gamma = gamma;
+        }
+
+        /** @return the width of the kernel */
+        public double gamma(){
+            return this.gamma;
+        }
+
+        @Override
+        public double value(double dot, double squaredNormA, double squaredNormB){
+            double squaredDistance = Math.max(0.0, squaredNormA + squaredNormB - 2.0*dot);
+            return Math.exp(-this.gamma*squaredDistance);
+        }
+    }
+
+    /** The polynomial kernel, (a.b + coef0)^degree */
+    final class Polynomial implements Kernel {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int degree;
+        private final double coef0;
+
+        Polynomial(int degree, double coef0){
+            if (degree < 1){
+                throw new IllegalArgumentException("The degree must be at least 1, not " + degree);
+            }
+            this.degree = degree;
+            this.coef0 = coef0;
+        }
+
+        @Override
+        public double value(double dot, double squaredNormA, double squaredNormB){
+            double base = dot + this.coef0;
+            double value = base;
+            for (int i = 1; i < this.degree; i++){
+                value *= base;
+            }
+            return value;
+        }
+    }
+
+}
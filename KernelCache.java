@@ -0,0 +1,91 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Class caching kernel values between training rows and the support vectors of a KernelPerceptron
+ *  Each cached entry holds the kernel values of one training row against every support vector slot, along with the
+ *  id of the support vector each value was found for, so a value is only reused while the same support vector still
+ *  holds its slot. Entries are evicted least recently used first once the cache holds as many rows as fit in its
+ *  memory budget, and the arrays of an evicted entry are reused for the next row cached, so a full cache allocates
+ *  nothing.
+ */
+public class KernelCache {
+
+    private final int numSlots;
+    private final int maxRows;
+    private final Map<Integer, Entry> entries;
+    private Entry spare;
+    private long hits;
+    private long misses;
+
+    /** Creates an empty cache
+     *
+     * @param numSlots the number of support vector slots, the length of each cached row
+     * @param maxBytes the memory the cached kernel values and ids may take up
+     */
+    public KernelCache(int numSlots, long maxBytes){
+        this.numSlots = numSlots;
+        this.maxRows = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes/(16L*Math.max(1, numSlots))));
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest){
+                if (size() > KernelCache.this.maxRows){
+                    KernelCache.this.spare = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Finds the cached kernel values of a training row, making it the most recently used, or starts a new entry for
+     * it holding no valid values, evicting the least recently used row if the cache is full
+     *
+     * @param row the index of the training row
+     * @return the cached entry of the row
+     */
+    public Entry row(int row){
+        Entry entry = this.entries.get(row);
+        if (entry != null){
+            this.hits++;
+            return entry;
+        }
+
+        this.misses++;
+        entry = this.spare != null ? this.spare : new Entry(this.numSlots);
+        this.spare = null;
+        Arrays.fill(entry.ids, -1);
+        this.entries.put(row, entry);
+        return entry;
+    }
+
+    /** @return the maximum number of rows the cache holds */
+    public int maxRows(){
+        return this.maxRows;
+    }
+
+    /** @return the number of lookups that found the row cached */
+    public long hits(){
+        return this.hits;
+    }
+
+    /** @return the number of lookups that started a new entry */
+    public long misses(){
+        return this.misses;
+    }
+
+    /** The kernel values of one training row against every support vector slot */
+    public static final class Entry {
+
+        /** The kernel value against each slot, valid only where the id matches the slot's current support vector */
+        final double[] values;
+        /** The id of the support vector each value was found for, or -1 if none */
+        final long[] ids;
+
+        Entry(int numSlots){
+            this.values = new double[numSlots];
+            this.ids = new long[numSlots];
+        }
+    }
+
+}
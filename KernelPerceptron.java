@@ -0,0 +1,481 @@
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Randomizable;
+import java.util.Random;
+
+/** Class modelling a kernel perceptron classifier, learning the non-linear boundaries LinearPerceptron cannot
+ *  The model is a weighted sum of kernel values against stored support vectors, f(x) = sum of y*k(s, x), and a row
+ *  misclassified while training is added as a new support vector with its class (+1 or -1) as its coefficient.
+ *  The number of support vectors is capped by a budget: once it is full, each new support vector replaces a random
+ *  one, or the oldest one as the Forgetron does (without its shrinking of the remaining coefficients), so both the
+ *  memory held and the cost of a prediction, one dot product per support vector, are bounded by the budget.
+ *  While training, the kernel values of each row against the support vectors are kept in a KernelCache of bounded
+ *  size, so a row revisited in a later epoch only computes the values of support vectors added since.
+ *  Alternatively the RBF kernel can be approximated by random Fourier features, mapping each row onto a fixed number
+ *  of features on which an ordinary linear perceptron is trained through VectorOps, so a prediction costs one
+ *  matrix-vector product and one dot product whatever the data.
+ *  The class attribute is the last column, as elsewhere, and two classes are learnt, 0 and 1.
+ *  The classifier should only be used with continuous data
+ */
+public class KernelPerceptron extends AbstractClassifier implements Randomizable, UpdateableClassifier, BatchClassifier {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The support vector replaced when a new one is added to a full budget */
+    public enum Removal {
+        RANDOM, OLDEST
+    }
+
+    private Kernel kernel;
+    private int budget = 500;
+    private Removal removal = Removal.RANDOM;
+    private int randomFeatures = 0;
+    private int MAX_ITERATIONS = 100;
+    private long cacheBytes = 64L << 20;
+    private int seed = 1;
+    public Instances data;
+
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private transient EpochListener epochListener;
+    private transient KernelCache cache;
+
+    private int numAttributes;
+    private Kernel activeKernel;
+    private Random rnd;
+
+    private double[] supportVectors;
+    private double[] squaredNorms;
+    private double[] coefficients;
+    private long[] supportIds;
+    private int numSupport;
+    private int nextSlot;
+    private long nextId;
+
+    private double[] projection;
+    private double[] phases;
+    private double featureScale;
+    private double[] featureWeights;
+
+    /** Sets the seed used to draw the support vectors removed and the random features
+     *
+     * @param seed the random seed
+     */
+    @Override
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /** @return the seed used to draw the support vectors removed and the random features */
+    @Override
+    public int getSeed() {
+        return this.seed;
+    }
+
+    /** Sets the kernel, by default an RBF kernel with gamma of 1 over the number of attributes
+     *
+     * @param kernel the kernel, see Kernel.rbf(double) and Kernel.polynomial(int, double)
+     */
+    public void setKernel(Kernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /** Sets the maximum number of support vectors held, 500 by default
+     *
+     * @param budget the maximum number of support vectors
+     */
+    public void setBudget(int budget) {
+        if (budget < 1){
+            throw new IllegalArgumentException("The budget must be at least 1, not " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /** Sets which support vector is replaced when a new one is added to a full budget
+     *
+     * @param removal a random support vector, or the oldest one
+     */
+    public void setRemoval(Removal removal) {
+        this.removal = removal;
+    }
+
+    /** Sets the number of random Fourier features the RBF kernel is approximated with, in place of support vectors
+     *
+     * @param randomFeatures the number of features, or 0 to use support vectors
+     */
+    public void setRandomFeatures(int randomFeatures) {
+        this.randomFeatures = randomFeatures;
+    }
+
+    /** Sets the maximum number of epochs run, 100 by default
+     *
+     * @param maxIterations the maximum number of epochs
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.MAX_ITERATIONS = maxIterations;
+    }
+
+    /** Sets the memory the kernel cache may take up while training, 64 megabytes by default
+     *
+     * @param megabytes the size of the cache, or 0 to compute every kernel value afresh
+     */
+    public void setCacheSize(int megabytes) {
+        this.cacheBytes = (long) megabytes << 20;
+    }
+
+    /** Sets the policy deciding when training stops before the maximum number of iterations, by default after an
+     * epoch with no misclassified rows
+     *
+     * @param stoppingPolicy the stopping policy
+     */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** Sets the listener the errors, coefficient norm and time of each training epoch are reported to
+     *
+     * @param epochListener the listener, or null for none
+     */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** @return the number of support vectors held, 0 when using random features */
+    public int numSupportVectors() {
+        return this.numSupport;
+    }
+
+    /** Uses the Weka capabilities feature to disable nominal attributes,
+     * enforcing that the classifier should only be used with continuous data
+     * @return the capabilities of the classifier
+     */
+    @Override
+    public Capabilities getCapabilities() {
+        Capabilities caps = super.getCapabilities();
+        caps.disable(Capabilities.Capability.NOMINAL_ATTRIBUTES);
+
+        return caps;
+    }
+
+    /** Sets up an empty model over the given number of attributes: empty support vector slots, or a random projection
+     * and phase for each random feature, drawn from the seed
+     *
+     * @param numAttributes the number of non-class attributes
+     */
+    private void start(int numAttributes){
+        this.numAttributes = numAttributes;
+        this.activeKernel = this.kernel != null ? this.kernel : Kernel.rbf(1.0/Math.max(1, numAttributes));
+        this.rnd = new Random(this.seed);
+        this.numSupport = 0;
+        this.nextSlot = 0;
+        this.nextId = 0;
+
+        if (this.randomFeatures > 0){
+            if (!(this.activeKernel instanceof Kernel.Rbf)){
+                throw new IllegalArgumentException("Random Fourier features approximate the RBF kernel only");
+            }
+            double deviation = Math.sqrt(2.0*((Kernel.Rbf) this.activeKernel).gamma());
+            this.projection = new double[this.randomFeatures*numAttributes];
+            for (int i = 0; i < this.projection.length; i++){
+                this.projection[i] = deviation*this.rnd.nextGaussian();
+            }
+            this.phases = new double[this.randomFeatures];
+            for (int j = 0; j < this.randomFeatures; j++){
+                this.phases[j] = 2.0*Math.PI*this.rnd.nextDouble();
+            }
+            this.featureScale = Math.sqrt(2.0/this.randomFeatures);
+            this.featureWeights = new double[this.randomFeatures];
+            this.supportVectors = null;
+            this.squaredNorms = null;
+            this.coefficients = null;
+            this.supportIds = null;
+        }
+        else {
+            this.supportVectors = new double[this.budget*numAttributes];
+            this.squaredNorms = new double[this.budget];
+            this.coefficients = new double[this.budget];
+            this.supportIds = new long[this.budget];
+            this.projection = null;
+            this.phases = null;
+            this.featureWeights = null;
+        }
+    }
+
+    /** Sets the data variable if the data is continuous and of two classes
+     *  Trains the kernel perceptron on a primitive snapshot of the data, through support vectors or random features
+     *
+     * @param data the training data to build the classifier on
+     * @throws Exception catches unhandled Weka Exceptions
+     */
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+        this.getCapabilities().testWithFail(data);
+        if (data.numClasses() > 2){
+            throw new IllegalArgumentException("The kernel perceptron learns two classes, not " + data.numClasses());
+        }
+        this.data = data;
+        DenseInstances dense = DenseInstances.fromInstances(data);
+        start(dense.numColumns() - 1);
+        if (this.projection != null){
+            featureTraining(dense);
+        }
+        else {
+            kernelTraining(dense);
+        }
+    }
+
+    /** Runs the kernel perceptron rule over the snapshot, stopping after the maximum number of iterations, or earlier
+     * as decided by the stopping policy: by default after an epoch with no errors, which adds no support vectors
+     *
+     * @param data the dataset to train on
+     */
+    private void kernelTraining(DenseInstances data){
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        double[] rowNorms = new double[data.numRows()];
+        for (int i = 0; i < data.numRows(); i++){
+            rowNorms[i] = VectorOps.dot(values, data.offset(i), values, data.offset(i), this.numAttributes);
+        }
+
+        this.cache = this.cacheBytes > 0 ? new KernelCache(this.budget, this.cacheBytes) : null;
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.MAX_ITERATIONS; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int i = 0; i < data.numRows(); i++){
+                int offset = data.offset(i);
+                double sum = cachedScore(values, offset, rowNorms[i], i);
+                double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+                double localError = target - java.lang.Math.signum(sum);
+                if (localError != 0.0){
+                    errors++;
+                    loss += localError*localError;
+                    addSupportVector(values, offset, rowNorms[i], target);
+                }
+            }
+
+            if (run.epochFinished(errors, loss, this.coefficients)){
+                break;
+            }
+        }
+        this.cache = null;
+    }
+
+    /** Runs the perceptron rule over the random features of each row of the snapshot, stopping as kernelTraining does
+     *
+     * @param data the dataset to train on
+     */
+    private void featureTraining(DenseInstances data){
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        double[] features = new double[this.randomFeatures];
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.MAX_ITERATIONS; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int i = 0; i < data.numRows(); i++){
+                mapFeatures(values, data.offset(i), features);
+                double sum = VectorOps.dot(this.featureWeights, 0, features, 0, this.randomFeatures);
+                double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+                double localError = target - java.lang.Math.signum(sum);
+                if (localError != 0.0){
+                    errors++;
+                    loss += localError*localError;
+                    VectorOps.axpy(target, features, 0, this.featureWeights, 0, this.randomFeatures);
+                }
+            }
+
+            if (run.epochFinished(errors, loss, this.featureWeights)){
+                break;
+            }
+        }
+    }
+
+    /** Calculates the weighted sum of kernel values of a training row, reusing the values cached for the support
+     * vectors that held their slots when the row was last scored
+     *
+     * @param values the row-major attribute values
+     * @param offset the index of the first value of the row
+     * @param squaredNorm the squared norm of the row
+     * @param row the index of the row, its key in the cache
+     * @return the weighted sum
+     */
+    private double cachedScore(double[] values, int offset, double squaredNorm, int row){
+        if (this.cache == null){
+            double sum = 0.0;
+            for (int s = 0; s < this.numSupport; s++){
+                sum += this.coefficients[s]*kernelValue(s, values, offset, squaredNorm);
+            }
+            return sum;
+        }
+
+        KernelCache.Entry entry = this.cache.row(row);
+        double sum = 0.0;
+        for (int s = 0; s < this.numSupport; s++){
+            if (entry.ids[s] != this.supportIds[s]){
+                entry.values[s] = kernelValue(s, values, offset, squaredNorm);
+                entry.ids[s] = this.supportIds[s];
+            }
+            sum += this.coefficients[s]*entry.values[s];
+        }
+        return sum;
+    }
+
+    /** @param slot the slot of the support vector
+     *  @param values the array holding the row
+     *  @param offset the index of the first value of the row
+     *  @param squaredNorm the squared norm of the row
+     *  @return the kernel value of the support vector and the row
+     */
+    private double kernelValue(int slot, double[] values, int offset, double squaredNorm){
+        double dot = VectorOps.dot(this.supportVectors, slot*this.numAttributes, values, offset, this.numAttributes);
+        return this.activeKernel.value(dot, this.squaredNorms[slot], squaredNorm);
+    }
+
+    /** Stores a row as a support vector, in the next empty slot, or once the budget is full in the slot of the
+     * support vector chosen for removal
+     *
+     * @param values the array holding the row
+     * @param offset the index of the first value of the row
+     * @param squaredNorm the squared norm of the row
+     * @param coefficient the coefficient of the support vector, the class of the row as +1 or -1
+     */
+    private void addSupportVector(double[] values, int offset, double squaredNorm, double coefficient){
+        int slot;
+        if (this.numSupport < this.budget){
+            slot = this.numSupport++;
+        }
+        else if (this.removal == Removal.OLDEST){
+            slot = this.nextSlot;
+            this.nextSlot = (this.nextSlot + 1) % this.budget;
+        }
+        else {
+            slot = this.rnd.nextInt(this.budget);
+        }
+
+        System.arraycopy(values, offset, this.supportVectors, slot*this.numAttributes, this.numAttributes);
+        this.squaredNorms[slot] = squaredNorm;
+        this.coefficients[slot] = coefficient;
+        this.supportIds[slot] = this.nextId++;
+    }
+
+    /** Maps a row onto its random Fourier features, sqrt(2/D)*cos(w.x + b) for each projection w and phase b
+     *
+     * @param values the array holding the row
+     * @param offset the index of the first value of the row
+     * @param features the array the features are written to
+     */
+    private void mapFeatures(double[] values, int offset, double[] features){
+        VectorOps.gemv(this.projection, this.randomFeatures, this.numAttributes, values, offset, this.numAttributes, features);
+        for (int j = 0; j < this.randomFeatures; j++){
+            features[j] = this.featureScale*Math.cos(features[j] + this.phases[j]);
+        }
+    }
+
+    /** Calculates the weighted sum of a row, from the support vectors as one matrix-vector product or from the
+     * random features
+     *
+     * @param values the array holding the row
+     * @param offset the index of the first value of the row
+     * @param buffer a buffer of at least scoreBufferLength() values
+     * @return the weighted sum
+     */
+    private double score(double[] values, int offset, double[] buffer){
+        if (this.projection != null){
+            mapFeatures(values, offset, buffer);
+            return VectorOps.dot(this.featureWeights, 0, buffer, 0, this.randomFeatures);
+        }
+
+        double squaredNorm = VectorOps.dot(values, offset, values, offset, this.numAttributes);
+        VectorOps.gemv(this.supportVectors, this.numSupport, this.numAttributes, values, offset, this.numAttributes, buffer);
+        double sum = 0.0;
+        for (int s = 0; s < this.numSupport; s++){
+            sum += this.coefficients[s]*this.activeKernel.value(buffer[s], this.squaredNorms[s], squaredNorm);
+        }
+        return sum;
+    }
+
+    /** @return the length of the buffer score(double[], int, double[]) needs */
+    private int scoreBufferLength(){
+        return this.projection != null ? this.randomFeatures : this.budget;
+    }
+
+    /** Updates the classifier with a single new instance by applying one step of the perceptron rule, adding the
+     * instance as a support vector or updating the feature weights if it is misclassified, in time bounded by the
+     * budget. If the classifier has not been built yet, an empty model is set up first.
+     *
+     * @param instance the new instance to learn from
+     * @throws Exception catches unhandled Weka Exceptions
+     */
+    @Override
+    public void updateClassifier(Instance instance) throws Exception {
+        if (this.activeKernel == null){
+            start(instance.numAttributes() - 1);
+        }
+
+        double[] row = instance.toDoubleArray();
+        double[] buffer = new double[scoreBufferLength()];
+        double sum = score(row, 0, buffer);
+        double target = instance.classValue() != 0.0 ? 1.0 : -1.0;
+        if (target != java.lang.Math.signum(sum)){
+            if (this.projection != null){
+                VectorOps.axpy(target, buffer, 0, this.featureWeights, 0, this.randomFeatures);
+            }
+            else {
+                addSupportVector(row, 0, VectorOps.dot(row, 0, row, 0, this.numAttributes), target);
+            }
+        }
+    }
+
+    /** Predicts the class of an instance, 1 if its weighted sum is positive and 0 otherwise
+     *
+     * @param instance the instance to classify
+     * @return the predicted class
+     */
+    @Override
+    public double classifyInstance(Instance instance){
+        return score(instance.toDoubleArray(), 0, new double[scoreBufferLength()]) > 0.0 ? 1 : 0;
+    }
+
+    /** Predicts the class of every instance in a dataset, scoring all of them together as one batch
+     *
+     * @param data the instances to classify
+     * @return the predicted class of each instance
+     */
+    public double[] classifyBatch(Instances data){
+        DenseInstances dense = DenseInstances.fromInstances(data);
+        double[] predictions = new double[dense.numRows()];
+        classifyBatch(dense.values(), dense.numRows(), dense.numColumns(), predictions);
+        return predictions;
+    }
+
+    /** Predicts the class of a batch of rows stored in a row-major array, reusing one buffer for every row
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    @Override
+    public void classifyBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        if (nCols < this.numAttributes){
+            throw new IllegalArgumentException("Rows have " + nCols + " values but the model needs " + this.numAttributes);
+        }
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        double[] buffer = new double[scoreBufferLength()];
+        for (int r = 0; r < nRows; r++){
+            out[r] = score(rows, offset + r*nCols, buffer) > 0.0 ? 1 : 0;
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Class recording a distribution of durations, in nanoseconds, from which percentiles can be read
+ *  Durations are counted in logarithmic buckets: each power of two is split into 8 equal buckets, so a percentile
+ *  is accurate to within an eighth of its value whatever its magnitude, and the histogram has a fixed size.
+ *  Recording is a single atomic increment, so any number of threads can record at once without locking.
+ */
+public class LatencyHistogram {
+
+    /** The number of buckets each power of two is split into, as a power of two */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS)*SUB_BUCKETS);
+
+    /** Records one duration
+     *
+     * @param nanos the duration in nanoseconds, negative durations are counted as zero
+     */
+    public void record(long nanos){
+        this.counts.incrementAndGet(bucket(Math.max(0, nanos)));
+    }
+
+    /** @return the number of durations recorded */
+    public long count(){
+        long count = 0;
+        for (int b = 0; b < this.counts.length(); b++){
+            count += this.counts.get(b);
+        }
+        return count;
+    }
+
+    /** Finds the duration below which a given fraction of the recorded durations fall
+     *
+     * @param fraction the fraction of durations, between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the upper bound of the bucket holding the percentile in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double fraction){
+        long[] snapshot = new long[this.counts.length()];
+        long count = 0;
+        for (int b = 0; b < snapshot.length; b++){
+            snapshot[b] = this.counts.get(b);
+            count += snapshot[b];
+        }
+        if (count == 0){
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction*count));
+        long seen = 0;
+        for (int b = 0; b < snapshot.length; b++){
+            seen += snapshot[b];
+            if (seen >= rank){
+                return upperBound(b);
+            }
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    /** Clears every recorded duration */
+    public void reset(){
+        for (int b = 0; b < this.counts.length(); b++){
+            this.counts.set(b, 0);
+        }
+    }
+
+    /** @param nanos a non-negative duration
+     *  @return the index of the bucket counting the duration
+     */
+    private static int bucket(long nanos){
+        if (nanos < SUB_BUCKETS){
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1)*SUB_BUCKETS + subBucket;
+    }
+
+    /** @param bucket the index of a bucket
+     *  @return the largest duration counted by the bucket
+     */
+    private static long upperBound(int bucket){
+        if (bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int exponent = bucket/SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS)*width + width - 1;
+    }
+
+}
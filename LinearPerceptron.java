@@ -1,8 +1,12 @@
 import weka.classifiers.AbstractClassifier;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.Capabilities;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Randomizable;
+import weka.core.SparseInstance;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 /** Class modelling a Linear Perceptron classifier
  *  Capable of building a classifier object by finding the weight vector from an on-line learning algorithm,
@@ -10,14 +14,113 @@ import java.util.Random;
  *  A bias term may be included, and the learning rate and maximum number of iterations is modifiable
  *  The classifier should only be used with continuous data
  */
-public class LinearPerceptron extends AbstractClassifier {
+public class LinearPerceptron extends AbstractClassifier implements Randomizable, UpdateableClassifier, BatchClassifier {
 
     private double learningRate = 1;
     private int MAX_ITERATIONS = 1000;
     private double[] linearModel;
+    private double threshold;
     private boolean biasTerm = false;
+    private int seed = 1;
     public Instances data;
 
+    private int numThreads = 1;
+    private ParallelPerceptronTrainer.Mode parallelMode = ParallelPerceptronTrainer.Mode.HOGWILD;
+    private transient ExecutorService executor;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private AveragedPerceptronTrainer.Mode trainingMode = AveragedPerceptronTrainer.Mode.STANDARD;
+    private transient EpochListener epochListener;
+    private transient PerceptronMetrics metrics;
+
+    private boolean warmStart = false;
+
+    /** Sets the seed used to generate the initial weight vector
+     *
+     * @param seed the random seed
+     */
+    @Override
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /** @return the seed used to generate the initial weight vector */
+    @Override
+    public int getSeed() {
+        return this.seed;
+    }
+
+    /** Sets the number of threads the on-line learning rule runs on. With more than one thread, each thread trains
+     * on its own shard of the data, sharing the weight vector as described by the parallel mode. This applies to
+     * dense and sparse data alike, but not to the averaged and pocket training modes, which always train sequentially
+     *
+     * @param numThreads the number of threads, 1 to train sequentially
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /** Sets how the threads share the weight vector when training on more than one thread. Only averaging gives the
+     * same model from run to run, see ParallelPerceptronTrainer
+     *
+     * @param parallelMode lock-free shared updates, per-thread updates summed each epoch, or per-thread models averaged each epoch
+     */
+    public void setParallelMode(ParallelPerceptronTrainer.Mode parallelMode) {
+        this.parallelMode = parallelMode;
+    }
+
+    /** Sets the executor the threads are run on, the common fork-join pool if not set
+     *
+     * @param executor the executor to train on
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Sets which weight vector the on-line learning rule returns: the last one visited, the average of every weight
+     * vector visited, or the pocket holding the one with the longest run of correct classifications. The averaged
+     * and pocket modes always train sequentially, see AveragedPerceptronTrainer
+     *
+     * @param trainingMode the weight vector returned from training
+     */
+    public void setTrainingMode(AveragedPerceptronTrainer.Mode trainingMode) {
+        this.trainingMode = trainingMode;
+    }
+
+    /** Sets the policy deciding when training stops before the maximum number of iterations, by default after an
+     * epoch with no misclassified rows
+     *
+     * @param stoppingPolicy the stopping policy
+     */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** Sets the listener the errors, weight norm and time of each training epoch are reported to
+     *
+     * @param epochListener the listener, or null for none
+     */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** Sets the metrics the classifier records its training and the latency of classifying single instances to.
+     * No metrics are recorded by default, in which case recording costs nothing beyond a null check.
+     *
+     * @param metrics the metrics to record to, or null for none
+     */
+    public void setMetrics(PerceptronMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Sets whether building the classifier again continues training from the current linear model, rather than
+     * from a new random weight vector, so new data can be absorbed without starting over
+     *
+     * @param warmStart true to continue from the current linear model
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
     /** Uses the Weka capabilities feature to disable nominal attributes,
      * enforcing that the classifier should only be used with continuous data
      * @return the capabilities of the classifier
@@ -30,73 +133,128 @@ public class LinearPerceptron extends AbstractClassifier {
         return caps;
     }
 
-    /** Builds the classifier on a set of training data to form a linear model
-     * The weight vector is initialised to random small values, with the possible inclusion of a bias term
-     * The training method then iterates over the dataset, using the on-line learning rule to update the weight vector
-     * The iteration stops when the maximum number of iterations has been met, or there are no more errors.
+    /** Generates the initial weight vector from the seed, with the possible inclusion of a bias term.
+     * If warm starting is enabled and a linear model of the same size has already been built, training continues
+     * from a copy of that model instead.
      *
-     * @param data the dataset to build a linear model on
-     * @return the linear model/final weight vector
+     * @param numColumns the number of values in each row
+     * @return the initial weight vector
      */
-    private double[] perceptronTraining(Instances data){
-
-        double[] weightVector = new double[data.numAttributes() + 1];
+    private double[] initialWeights(int numColumns){
+        if (this.warmStart && this.linearModel != null && this.linearModel.length == numColumns + 1){
+            return this.linearModel.clone();
+        }
 
-        for (int i = 0; i < data.numAttributes(); i++){
-            double w = new Random().nextDouble();
+        double[] weightVector = new double[numColumns + 1];
+        Random rnd = new Random(this.seed);
+        for (int i = 0; i < numColumns; i++){
+            double w = rnd.nextDouble();
             weightVector[i] = w;
         }
 
         if (this.biasTerm){
-            double bias = new Random().nextDouble();
+            double bias = rnd.nextDouble();
             weightVector[weightVector.length - 1] = bias;
         }
+        return weightVector;
+    }
+
+    /** Builds the classifier on a set of training data to form a linear model
+     * The weight vector is initialised to random small values from the seed, with the possible inclusion of a bias term
+     * The training method then iterates over the dataset, using the on-line learning rule to update the weight vector
+     * Rows of class 1 are trained towards +1 and rows of class 0 towards -1, so only misclassified rows update the
+     * weights and count as errors.
+     * The iteration stops when the maximum number of iterations has been met, or earlier as decided by the stopping
+     * policy, by default when there are no more errors.
+     * If the averaged or pocket mode is set, the training is handed to an AveragedPerceptronTrainer instead, and
+     * otherwise if more than one thread is set, to a ParallelPerceptronTrainer.
+     * The epochs run over a primitive snapshot of the dataset rather than the Instance objects.
+     *
+     * @param data the dataset to build a linear model on
+     * @param listener the listener each epoch is reported to, or null
+     * @return the linear model/final weight vector
+     */
+    private double[] perceptronTraining(DenseInstances data, EpochListener listener){
+
+        double[] weightVector = initialWeights(data.numColumns());
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        int numColumns = data.numColumns();
 
-        boolean changes = true;
-        int lastModified = -1;
-        boolean currentModified;
-        int iteration = 0;
         this.learningRate = 1.0;
+        if (this.trainingMode != AveragedPerceptronTrainer.Mode.STANDARD){
+            return averagedTrainer(listener).train(data, weightVector);
+        }
+        if (this.numThreads > 1){
+            return parallelTrainer(listener).train(data, weightVector);
+        }
 
-        do {
-            iteration++;
-            double localError;
+        StoppingPolicy.Run run = this.stoppingPolicy.start(listener);
 
-            for (int i = 0; i < data.numInstances(); i++){
+        for (int iteration = 0; iteration < this.MAX_ITERATIONS; iteration++){
+            double localError;
+            int errors = 0;
+            double loss = 0.0;
 
-                currentModified = false;
-                Instance instance = data.instance(i);
-                double sum = 0.0;
+            for (int i = 0; i < data.numRows(); i++){
 
-                for (int attr = 0; attr < instance.numAttributes(); attr++) {
-                    sum += weightVector[attr]*instance.value(attr);
-                }
+                int offset = data.offset(i);
+                double sum = VectorOps.dot(weightVector, 0, values, offset, numColumns);
 
                 double predictedClass = java.lang.Math.signum(sum);
-                localError = instance.classValue() - predictedClass;
-
-                for (int j = 0; j < weightVector.length - 1; j++) {
-                    double weightChange = 0.5*this.learningRate*localError*instance.value(j);
-                    if (weightChange != 0.0 && weightChange != -0.0){
-                        lastModified = i;
-                        currentModified = true;
-                    }
-                    weightVector[j] += weightChange;
-                }
+                double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+                localError = target - predictedClass;
 
-                if (!currentModified && lastModified == i) {
-                    changes = false;
+                double rate = 0.5*this.learningRate*localError;
+                if (rate != 0.0){
+                    errors++;
+                    loss += localError*localError;
+                    VectorOps.axpy(rate, values, offset, weightVector, 0, weightVector.length - 1);
                 }
             }
-        }
 
-        while(iteration < this.MAX_ITERATIONS && changes);
+            if (run.epochFinished(errors, loss, weightVector)){
+                break;
+            }
+        }
 
         return weightVector;
     }
 
+    /** @param listener the listener each epoch is reported to, or null
+     *  @return a trainer for the averaged or pocket on-line learning rule, set up from the classifier's settings
+     */
+    private AveragedPerceptronTrainer averagedTrainer(EpochListener listener){
+        AveragedPerceptronTrainer trainer = new AveragedPerceptronTrainer();
+        trainer.setMode(this.trainingMode);
+        trainer.setMaxIterations(this.MAX_ITERATIONS);
+        trainer.setLearningRate(this.learningRate);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(listener);
+        return trainer;
+    }
+
+    /** @param listener the listener each epoch is reported to, or null
+     *  @return a trainer running the on-line learning rule on several threads, set up from the classifier's settings
+     */
+    private ParallelPerceptronTrainer parallelTrainer(EpochListener listener){
+        ParallelPerceptronTrainer trainer = new ParallelPerceptronTrainer();
+        trainer.setMode(this.parallelMode);
+        trainer.setNumThreads(this.numThreads);
+        trainer.setMaxIterations(this.MAX_ITERATIONS);
+        trainer.setLearningRate(this.learningRate);
+        trainer.setExecutor(this.executor);
+        trainer.setStoppingPolicy(this.stoppingPolicy);
+        trainer.setEpochListener(listener);
+        return trainer;
+    }
+
     /** Sets the data variable if the data is continuous
-     *  Trains the perceptron to find the linear model
+     *  Trains the perceptron to find the linear model on a primitive snapshot of the data
+     *  Data made of SparseInstance objects is snapshotted in compressed sparse row form instead, and trained on by a
+     *  SparsePerceptronTrainer, or a ParallelPerceptronTrainer if more than one thread is set, touching only the
+     *  non-zero values of each row.
+     *  If metrics are set, the epochs, updates and time of the build are recorded to them.
      *
      * @param data the training data to build the classifier on
      * @throws Exception catches unhandled Weka Exceptions
@@ -105,30 +263,123 @@ public class LinearPerceptron extends AbstractClassifier {
     public void buildClassifier(Instances data) throws Exception{
         this.getCapabilities().testWithFail(data);
         this.data = data;
-        this.linearModel = perceptronTraining(this.data);
+        PerceptronMetrics.Training training = this.metrics != null ? this.metrics.startTraining(this.epochListener) : null;
+        EpochListener listener = training != null ? training : this.epochListener;
+        if (SparseInstances.isSparse(this.data)){
+            SparseInstances sparse = SparseInstances.fromInstances(this.data);
+            this.learningRate = 1.0;
+            if (this.trainingMode != AveragedPerceptronTrainer.Mode.STANDARD){
+                this.linearModel = averagedTrainer(listener).train(sparse, initialWeights(sparse.numColumns()));
+            }
+            else if (this.numThreads > 1){
+                this.linearModel = parallelTrainer(listener).train(sparse, initialWeights(sparse.numColumns()));
+            }
+            else {
+                SparsePerceptronTrainer trainer = new SparsePerceptronTrainer();
+                trainer.setLearningRate(this.learningRate);
+                trainer.setMaxIterations(this.MAX_ITERATIONS);
+                trainer.setStoppingPolicy(this.stoppingPolicy);
+                trainer.setEpochListener(listener);
+                this.linearModel = trainer.trainOnline(sparse, null, initialWeights(sparse.numColumns()));
+            }
+        }
+        else {
+            this.linearModel = perceptronTraining(DenseInstances.fromInstances(this.data), listener);
+        }
+        this.threshold = calculateThreshold(this.linearModel);
+        if (training != null){
+            training.finish(this.data.numInstances());
+        }
     }
 
-    /** Predicts the class of an instance, first by applying the weight vector to the instance
-     *  The class is predicted based on whether it passes the threshold value (the sum of the weight vector)
+    /** Updates the classifier with a single new instance by applying one step of the on-line learning rule,
+     * in time proportional to the number of attributes. The threshold is adjusted by the same step, so it stays the
+     * sum of the weight vector. If the classifier has not been built yet, a new random weight vector is generated first.
+     *
+     * @param instance the new instance to learn from
+     * @throws Exception catches unhandled Weka Exceptions
+     */
+    @Override
+    public void updateClassifier(Instance instance) throws Exception {
+        long start = this.metrics != null ? System.nanoTime() : 0;
+        if (this.linearModel == null){
+            this.linearModel = initialWeights(instance.numAttributes());
+            this.threshold = calculateThreshold(this.linearModel);
+        }
+
+        int numWeights = this.linearModel.length - 1;
+        double sum = 0.0;
+        for (int attr = 0; attr < numWeights; attr++){
+            sum += this.linearModel[attr]*instance.value(attr);
+        }
+
+        this.learningRate = 1.0;
+        double target = instance.classValue() != 0.0 ? 1.0 : -1.0;
+        double localError = target - java.lang.Math.signum(sum);
+        double rate = 0.5*this.learningRate*localError;
+        if (rate != 0.0){
+            for (int j = 0; j < numWeights; j++){
+                double weightChange = rate*instance.value(j);
+                this.linearModel[j] += weightChange;
+                this.threshold += weightChange;
+            }
+        }
+        if (this.metrics != null){
+            this.metrics.recordUpdate(rate != 0.0, System.nanoTime() - start);
+        }
+    }
+
+    /** Calculates the threshold value used to classify instances, the sum of the weight vector excluding the bias
+     *
+     * @param linearModel the weight vector to find the threshold of
+     * @return the threshold value
+     */
+    private static double calculateThreshold(double[] linearModel){
+        double threshold = 0.0;
+        for (int i = 0; i < linearModel.length - 1; i++){
+            threshold += linearModel[i];
+        }
+        return threshold;
+    }
+
+    /** Predicts the class of an instance by applying the weight vector to the instance
+     *  The class is predicted based on whether it passes the threshold value (the sum of the weight vector),
+     *  which is calculated once when the classifier is built. The instance is only read, never modified.
+     *  For a SparseInstance only its non-zero values are read.
+     *  If metrics are set, the time taken is recorded to them.
      *
      * @param instance the instance to classify
      * @return the predicted class
      */
     public double classifyInstance(Instance instance){
+        if (this.metrics == null){
+            return predict(instance);
+        }
+        long start = System.nanoTime();
+        double predictedClass = predict(instance);
+        this.metrics.recordPrediction(System.nanoTime() - start);
+        return predictedClass;
+    }
+
+    /** Predicts the class of an instance, see classifyInstance(Instance)
+     *
+     * @param instance the instance to classify
+     * @return the predicted class
+     */
+    private double predict(Instance instance){
         double predictedClass;
         double weightedSum = 0.0;
 
-        for (int i = 0; i < this.linearModel.length - 1; i++){
-            instance.setValue(i, instance.value(i)*this.linearModel[i]);
-            weightedSum += instance.value(i);
+        if (instance instanceof SparseInstance){
+            weightedSum = SparseInstances.dot(instance, this.linearModel, this.linearModel.length - 1);
         }
-
-        double threshold = 0.0;
-        for (int i = 0; i < this.linearModel.length - 1; i++){
-            threshold += linearModel[i];
+        else {
+            for (int i = 0; i < this.linearModel.length - 1; i++){
+                weightedSum += instance.value(i)*this.linearModel[i];
+            }
         }
 
-        if (weightedSum > threshold){
+        if (weightedSum > this.threshold){
             predictedClass = 1;
         }
         else {
@@ -137,6 +388,98 @@ public class LinearPerceptron extends AbstractClassifier {
         return predictedClass;
     }
 
+    /** @return the weight vector of the linear model, with the bias last */
+    double[] getLinearModel(){
+        return this.linearModel;
+    }
+
+    /** @return the threshold the weighted sum is compared against */
+    double getThreshold(){
+        return this.threshold;
+    }
+
+    /** Sets a trained linear model, as read back from a model file, see ModelFile
+     *
+     * @param linearModel the weight vector, with the bias last
+     * @param threshold the threshold the weighted sum is compared against
+     */
+    void setModel(double[] linearModel, double threshold){
+        this.linearModel = linearModel;
+        this.threshold = threshold;
+        this.data = null;
+    }
+
+    /** Predicts the class of every instance in a dataset, scoring all of them together as one batch
+     * Sparse data is scored one instance at a time from its non-zero values rather than expanded into a dense batch.
+     *
+     * @param data the instances to classify
+     * @return the predicted class of each instance
+     */
+    public double[] classifyBatch(Instances data){
+        if (SparseInstances.isSparse(data)){
+            double[] predictions = new double[data.numInstances()];
+            for (int i = 0; i < predictions.length; i++){
+                predictions[i] = predict(data.instance(i));
+            }
+            return predictions;
+        }
+        DenseInstances dense = DenseInstances.fromInstances(data);
+        double[] predictions = new double[dense.numRows()];
+        classifyBatch(dense.values(), dense.numRows(), dense.numColumns(), predictions);
+        return predictions;
+    }
+
+    /** Predicts the class of a batch of rows stored in a row-major array.
+     * The weighted sums of all rows are calculated as one blocked matrix-vector product, then compared with the threshold.
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    @Override
+    public void classifyBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        int numWeights = this.linearModel.length - 1;
+        if (nCols < numWeights){
+            throw new IllegalArgumentException("Rows have " + nCols + " values but the model needs " + numWeights);
+        }
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        VectorOps.gemv(rows, offset, nRows, nCols, this.linearModel, 0, numWeights, out);
+        for (int i = 0; i < nRows; i++){
+            out[i] = out[i] > this.threshold ? 1 : 0;
+        }
+    }
+
+    /** Scores a batch of rows, the margin of each row from the threshold mapped onto [0, 1], see
+     * BatchClassifier.linearScore(double, double)
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to score
+     * @param nCols the number of values stored for each row
+     * @param out the array the scores are written to
+     */
+    @Override
+    public void scoreBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        int numWeights = this.linearModel.length - 1;
+        if (nCols < numWeights){
+            throw new IllegalArgumentException("Rows have " + nCols + " values but the model needs " + numWeights);
+        }
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        double norm = Math.sqrt(VectorOps.dot(this.linearModel, 0, this.linearModel, 0, numWeights));
+        VectorOps.gemv(rows, offset, nRows, nCols, this.linearModel, 0, numWeights, out);
+        for (int i = 0; i < nRows; i++){
+            out[i] = BatchClassifier.linearScore(out[i] - this.threshold, norm);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
 
         //Testing carried out
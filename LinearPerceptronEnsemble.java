@@ -1,121 +1,546 @@
 import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Randomizable;
+import weka.core.SparseInstance;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
 
 /** Class modelling an ensemble of EnhancedLinearPerceptron objects
  *  The default size of the ensemble is 50.
- *  50% of the attributes are selected by each perceptron, and the attributes not selected are stored in a matrix.
+ *  50% of the attributes are selected by each perceptron, and the indices of the attributes each one kept are stored.
+ *  The perceptrons are trained concurrently on an executor, each from its own seed derived from the ensemble seed,
+ *  so the ensemble built is the same whatever the number of threads.
+ *  Data whose class has more than two values is learnt by one-vs-rest perceptrons, each voting for the class it
+ *  predicts, and an instance is predicted as the class with the most votes.
+ *  Dense data is snapshotted once into a primitive matrix shared by every perceptron, each reading its rows and
+ *  attributes through int[] index maps rather than a copy, so the memory used grows with the number of perceptrons
+ *  only by their index maps and models. Each perceptron may also train on a sample of the rows, drawn with
+ *  replacement (bootstrap bagging) or without (subsampling); the perceptron then votes on the rows it did not train
+ *  on as soon as it is built, giving the out-of-bag error of the ensemble without a separate evaluation.
  */
-public class LinearPerceptronEnsemble {
+public class LinearPerceptronEnsemble implements Randomizable, BatchClassifier {
 
     private int size = 50;
     private EnhancedLinearPerceptron[] ensemble;
     private double proportionAttribs = 0.5;
-    private Attribute[][] attribsUsed;
+    private int[][] attribIndices;
+    private int seed = 1;
+    private ExecutorService executor;
+    private CompiledEnsemble compiled;
+    private PerceptronMetrics metrics;
+    private int numClasses = 2;
+    private boolean bootstrap = false;
+    private double sampleProportion = 1.0;
+    private double outOfBagError = Double.NaN;
 
-    /** Generates a random index of Attribute to select and makes sure it has not already been selected
+    /** The number of rows gathered for each perceptron at a time when classifying a batch */
+    private static final int BATCH_BLOCK_ROWS = 256;
+
+    /** The ensemble size from which the votes for a single instance are counted in parallel */
+    private static final int PARALLEL_VOTE_THRESHOLD = 256;
+
+    /** Sets the ensemble seed, from which the seed of each perceptron is derived
+     *
+     * @param seed the random seed
+     */
+    @Override
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /** @return the ensemble seed, from which the seed of each perceptron is derived */
+    @Override
+    public int getSeed() {
+        return this.seed;
+    }
+
+    /** Sets the executor the perceptrons are trained on, e.g. a fork-join pool or a virtual thread executor.
+     * If no executor is set the common fork-join pool is used.
+     *
+     * @param executor the executor to train on
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Sets the metrics the ensemble records the time taken to build each perceptron and the latency of classifying
+     * single instances to. The perceptrons record their training epochs and updates to the same metrics.
+     * No metrics are recorded by default, in which case recording costs nothing beyond a null check.
+     *
+     * @param metrics the metrics to record to, or null for none
+     */
+    public void setMetrics(PerceptronMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Sets whether each perceptron trains on a bootstrap sample of the rows, drawn with replacement
+     *
+     * @param bootstrap true to draw the rows with replacement, false to draw them without
+     */
+    public void setBootstrap(boolean bootstrap) {
+        this.bootstrap = bootstrap;
+    }
+
+    /** Sets the size of the sample of rows each perceptron trains on, as a proportion of the training data.
+     * Without bootstrapping, a proportion of 1 trains every perceptron on every row, which is the default.
+     *
+     * @param sampleProportion the proportion of rows in each sample
+     */
+    public void setSampleProportion(double sampleProportion) {
+        if (sampleProportion <= 0.0){
+            throw new IllegalArgumentException("The sample proportion must be positive, not " + sampleProportion);
+        }
+        this.sampleProportion = sampleProportion;
+    }
+
+    /** @return the proportion of the training rows with any out-of-bag votes that the majority of those votes
+     *  misclassified, or NaN if every perceptron trained on every row
+     */
+    public double getOutOfBagError() {
+        return this.outOfBagError;
+    }
+
+    /** Forms a new dataset holding only the given rows and attributes of the data, leaving the data itself untouched
+     * A SparseInstance is projected onto another SparseInstance holding only its non-zero values, so sparse data
+     * stays sparse and the perceptron trains on it through the sparse path.
+     *
+     * @param data the data to project
+     * @param kept the indices of the attributes to keep, in ascending order, including the class attribute
+     * @param rows the indices of the rows to keep, in order and possibly repeated, or null to keep every row
+     * @return the projected dataset
+     */
+    private static Instances projectData(Instances data, int[] kept, int[] rows){
+        ArrayList<Attribute> attributes = new ArrayList<>(kept.length);
+        int classIndex = -1;
+        for (int k = 0; k < kept.length; k++){
+            attributes.add((Attribute) data.attribute(kept[k]).copy());
+            if (kept[k] == data.classIndex()) {
+                classIndex = k;
+            }
+        }
+
+        int numRows = rows != null ? rows.length : data.numInstances();
+        Instances projected = new Instances(data.relationName(), attributes, numRows);
+        projected.setClassIndex(classIndex);
+        for (int r = 0; r < numRows; r++){
+            Instance instance = data.instance(rows != null ? rows[r] : r);
+            if (instance instanceof SparseInstance){
+                projected.add(projectSparse(instance, kept));
+                continue;
+            }
+            double[] values = new double[kept.length];
+            for (int k = 0; k < kept.length; k++){
+                values[k] = instance.value(kept[k]);
+            }
+            projected.add(new DenseInstance(instance.weight(), values));
+        }
+
+        return projected;
+    }
+
+    /** Projects a sparse instance onto the given attributes, reading only its non-zero values
+     *
+     * @param instance the sparse instance to project
+     * @param kept the indices of the attributes to keep, in ascending order
+     * @return the projected sparse instance
+     */
+    private static Instance projectSparse(Instance instance, int[] kept){
+        int[] indices = new int[instance.numValues()];
+        double[] values = new double[instance.numValues()];
+        int numValues = 0;
+        for (int k = 0; k < instance.numValues(); k++){
+            int position = Arrays.binarySearch(kept, instance.index(k));
+            if (position >= 0 && instance.valueSparse(k) != 0.0){
+                indices[numValues] = position;
+                values[numValues] = instance.valueSparse(k);
+                numValues++;
+            }
+        }
+        return new SparseInstance(instance.weight(), Arrays.copyOf(values, numValues), Arrays.copyOf(indices, numValues),
+                kept.length);
+    }
+
+    /** Builds a single perceptron of the ensemble: draws its sample of rows and trains it on them and its attributes
+     * through index maps over the shared snapshot, or for sparse data on a projection of the data onto them.
+     * If the rows are sampled, the perceptron then votes on the rows it did not train on.
      *
-     * @param numAttribs the number of attributes in the dataset
-     * @param indices the already selected indices
-     * @return the index of the attribute to select
+     * @param data the shared training data, which is only read
+     * @param shared the shared dense snapshot of the data, or null for sparse data
+     * @param scaler the scaler fitted to the shared snapshot, or null for sparse data
+     * @param outOfBagVotes the out-of-bag votes for each class of each row, or null if the rows are not sampled
+     * @param kept the indices of the attributes the perceptron selected, followed by the class attribute
+     * @param rnd the random number generator for the perceptron's rows and initial weights
+     * @return the trained perceptron
+     * @throws Exception catches unhandled Weka Exceptions
      */
-    private int generateRandomIndex(int numAttribs, int[] indices){
-        Random rnd = new Random();
-        int randomIndex = rnd.nextInt(numAttribs);
-        int index = randomIndex;
-        if (Arrays.stream(indices).anyMatch(j -> j == randomIndex)){
-            index = generateRandomIndex(numAttribs, indices);
+    private EnhancedLinearPerceptron buildMember(Instances data, DenseInstances shared, StandardScaler scaler,
+                                                 AtomicIntegerArray outOfBagVotes, int[] kept, Random rnd) throws Exception {
+        long start = this.metrics != null ? System.nanoTime() : 0;
+        EnhancedLinearPerceptron perceptron = new EnhancedLinearPerceptron();
+        perceptron.setSeed(rnd.nextInt());
+        perceptron.setMetrics(this.metrics);
+        int[] rows = sampleRows(data.numInstances(), rnd);
+        if (shared != null){
+            perceptron.buildClassifier(shared, rows, kept, this.numClasses, scaler);
+        }
+        else {
+            perceptron.buildClassifier(projectData(data, kept, rows));
+        }
+        if (outOfBagVotes != null && rows != null){
+            voteOutOfBag(perceptron, kept, rows, data, shared, outOfBagVotes);
         }
-        return index;
+        if (this.metrics != null){
+            this.metrics.recordMember(System.nanoTime() - start);
+        }
+        return perceptron;
     }
 
-    /** Selects which attributes to use by generating random indices, deleting the attributes at those indices,
-     * and storing the deleted attributes in an array.
+    /** Draws the sample of rows a perceptron trains on, numRows*sampleProportion rows drawn with replacement when
+     * bootstrapping and without otherwise. The rows are sorted, so the shared snapshot is read in memory order and the
+     * rows are seen in the order of the training data.
      *
-     * @param data the data to carry out attribute selection on
-     * @param proportion the proportion of attributes to select
-     * @return an array of non-selected Attribute objects
+     * @param numRows the number of rows in the training data
+     * @param rnd the random number generator to draw the rows from
+     * @return the indices of the rows, or null to train on every row
      */
-    public Attribute[] selectAttribs(Instances data, double proportion){
-        int numAttribs = data.numAttributes() - 1;
-        int numToSelect = (int)(numAttribs*(1-proportion));
-        int[] randomIndices = new int[numToSelect];
+    private int[] sampleRows(int numRows, Random rnd){
+        int sampleSize = (int) Math.max(1, Math.round(numRows*this.sampleProportion));
+        if (numRows == 0 || (!this.bootstrap && sampleSize >= numRows)){
+            return null;
+        }
 
-        for (int i = 0; i < numToSelect; i++){
-            int rand = generateRandomIndex(numAttribs, randomIndices);
-            randomIndices[i] = rand;
+        int[] rows;
+        if (this.bootstrap){
+            rows = new int[sampleSize];
+            for (int i = 0; i < sampleSize; i++){
+                rows[i] = rnd.nextInt(numRows);
+            }
+        }
+        else {
+            int[] order = new int[numRows];
+            for (int i = 0; i < numRows; i++){
+                order[i] = i;
+            }
+            for (int i = 0; i < sampleSize; i++){
+                int j = i + rnd.nextInt(numRows - i);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            rows = Arrays.copyOf(order, sampleSize);
         }
+        Arrays.sort(rows);
+        return rows;
+    }
 
-        Attribute[] selected = new Attribute[numToSelect];
-        for (int i = 0; i < randomIndices.length; i++){
-            int ind = randomIndices[i];
-            Attribute select = data.attribute(ind);
-            if (select.index() < data.numAttributes()-1) {
-                selected[i] = select;
+    /** Adds the vote of a newly built perceptron for each row it did not train on to the out-of-bag votes. The rows
+     * are read from the shared snapshot through the perceptron's attribute indices, or for sparse data from the
+     * instances' non-zero values.
+     *
+     * @param perceptron the perceptron
+     * @param kept the indices of the attributes the perceptron kept
+     * @param rows the sorted indices of the rows the perceptron trained on
+     * @param data the training data
+     * @param shared the shared dense snapshot of the data, or null for sparse data
+     * @param outOfBagVotes the out-of-bag votes for each class of each row
+     */
+    private void voteOutOfBag(EnhancedLinearPerceptron perceptron, int[] kept, int[] rows, Instances data,
+                              DenseInstances shared, AtomicIntegerArray outOfBagVotes){
+        double[] scores = this.numClasses > 2 ? new double[this.numClasses] : null;
+        int next = 0;
+        for (int i = 0; i < data.numInstances(); i++){
+            if (next < rows.length && rows[next] == i){
+                while (next < rows.length && rows[next] == i){
+                    next++;
+                }
+                continue;
             }
+            double predictedClass = shared != null
+                    ? perceptron.classifyValues(shared.values(), shared.offset(i), kept, scores)
+                    : perceptron.classifySparse(data.instance(i), kept, scores);
+            outOfBagVotes.incrementAndGet(i*this.numClasses + (int) predictedClass);
         }
+    }
 
-        return selected;
+    /** Calculates the out-of-bag error from the votes gathered while building, over the rows with any votes
+     *
+     * @param data the training data
+     * @param outOfBagVotes the out-of-bag votes for each class of each row
+     * @return the proportion of the rows with any votes whose majority vote is wrong, or NaN if there are none
+     */
+    private double outOfBagError(Instances data, AtomicIntegerArray outOfBagVotes){
+        int[] votes = new int[this.numClasses];
+        int counted = 0;
+        int wrong = 0;
+        for (int i = 0; i < data.numInstances(); i++){
+            int total = 0;
+            for (int k = 0; k < this.numClasses; k++){
+                votes[k] = outOfBagVotes.get(i*this.numClasses + k);
+                total += votes[k];
+            }
+            if (total == 0){
+                continue;
+            }
+            counted++;
+            if (majority(votes, 0, this.numClasses) != data.instance(i).classValue()){
+                wrong++;
+            }
+        }
+        return counted == 0 ? Double.NaN : (double) wrong/counted;
     }
 
     /** Builds each perceptron using attribute selection and adds them to the array of perceptron objects stored
      * by the ensemble.
+     * The perceptrons are trained concurrently, each on its selected attributes and rows of the data,
+     * and the indices of the attributes each one kept are stored so rows can be projected onto them when classifying.
+     * The seed of each perceptron is drawn up front from the ensemble seed, and its attributes selected from it before
+     * the perceptrons are trained, by one sampler reused across the ensemble, so the result does not depend on scheduling.
+     * Dense data is snapshotted and a scaler fitted to it once, and every perceptron trains on the shared snapshot
+     * through its index maps. If the rows are sampled, the out-of-bag error is found from the votes gathered.
      *
      * @param data
      * @throws Exception
      */
     public void buildClassifier(Instances data) throws Exception {
         this.ensemble = new EnhancedLinearPerceptron[this.size];
-        this.attribsUsed = new Attribute[this.size][data.numAttributes()];
+        this.compiled = null;
+        this.numClasses = Math.max(2, data.numClasses());
+        this.attribIndices = new int[this.size][];
+        this.outOfBagError = Double.NaN;
 
+        DenseInstances shared = SparseInstances.isSparse(data) ? null : DenseInstances.fromInstances(data);
+        StandardScaler scaler = shared != null ? StandardScaler.fit(shared, this.executor) : null;
+        boolean sampled = this.bootstrap || this.sampleProportion < 1.0;
+        AtomicIntegerArray outOfBagVotes = sampled ? new AtomicIntegerArray(data.numInstances()*this.numClasses) : null;
+
+        Random seeds = new Random(this.seed);
+        AttributeSampler sampler = new AttributeSampler(data.numAttributes());
+        List<Callable<EnhancedLinearPerceptron>> tasks = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            Random rnd = new Random(seeds.nextInt());
+            int[] kept = sampler.select(this.proportionAttribs, rnd);
+            this.attribIndices[i] = kept;
+            tasks.add(() -> buildMember(data, shared, scaler, outOfBagVotes, kept, rnd));
+        }
+
+        ExecutorService pool = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+        List<Future<EnhancedLinearPerceptron>> trained = pool.invokeAll(tasks);
         for (int i = 0; i < this.ensemble.length; i++) {
-            EnhancedLinearPerceptron perceptron = new EnhancedLinearPerceptron();
-            Attribute[] selected = selectAttribs(data, this.proportionAttribs);
-            attribsUsed[i] = selected;
-
-            Instances modifiedData = data;
-            for (Attribute a : attribsUsed[i]){
-                if (a.index() < data.numAttributes() - 1) {
-                    modifiedData.deleteAttributeAt(a.index());
+            try {
+                this.ensemble[i] = trained.get(i).get();
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
                 }
+                throw e;
             }
+        }
+        if (outOfBagVotes != null){
+            this.outOfBagError = outOfBagError(data, outOfBagVotes);
+        }
+    }
 
-            perceptron.buildClassifier(modifiedData);
+    /** Compiles the built ensemble into a single dense weight matrix, see compile(boolean)
+     *
+     * @return the compiled ensemble
+     */
+    public CompiledEnsemble compile(){
+        return compile(false);
+    }
 
-            this.ensemble[i] = perceptron;
+    /** Compiles the built ensemble into a single weight matrix with one row per perceptron and a threshold vector.
+     * Once compiled, the ensemble classifies through the matrix rather than the perceptron objects, and the
+     * compiled model can be kept on its own for deployment. Only an ensemble of two classes can be compiled.
+     *
+     * @param sparse true to store only the selected attributes of each perceptron, false to store the full matrix
+     * @return the compiled ensemble
+     */
+    public CompiledEnsemble compile(boolean sparse){
+        if (this.numClasses > 2){
+            throw new IllegalStateException("Only an ensemble of two classes can be compiled, not " + this.numClasses);
         }
+        double[][] memberWeights = new double[this.ensemble.length][];
+        double[] thresholds = new double[this.ensemble.length];
+        int numAttributes = 0;
+        for (int i = 0; i < this.ensemble.length; i++) {
+            memberWeights[i] = this.ensemble[i].getLinearModel();
+            thresholds[i] = this.ensemble[i].getThreshold();
+            for (int index : this.attribIndices[i]) {
+                numAttributes = Math.max(numAttributes, index + 1);
+            }
+        }
+
+        this.compiled = new CompiledEnsemble(memberWeights, this.attribIndices, thresholds, numAttributes, sparse);
+        return this.compiled;
     }
 
-    /** Predicts the class of an instance, by classifying it with each perceptron object,
-     * and using a majority vote to find the class.
+    /** @return the perceptrons of the ensemble */
+    EnhancedLinearPerceptron[] getMembers(){
+        return this.ensemble;
+    }
+
+    /** @return the indices of the attributes each perceptron kept, including the class attribute */
+    int[][] getAttribIndices(){
+        return this.attribIndices;
+    }
+
+    /** @return the compiled form of the ensemble, or null if it has not been compiled */
+    CompiledEnsemble getCompiled(){
+        return this.compiled;
+    }
+
+    /** Sets trained perceptrons, as read back from a model file, see ModelFile.
      *
-     * @param instance the instance to classify
-     * @return the predicted class
+     * @param members the trained perceptrons
+     * @param attribIndices the indices of the attributes each perceptron kept, including the class attribute
      */
-    public double classifyInstance(Instance instance){
-        double predictedClass;
-        int[] countVotes = new int[2];
+    void setModel(EnhancedLinearPerceptron[] members, int[][] attribIndices){
+        this.ensemble = members;
+        this.attribIndices = attribIndices;
+        this.compiled = null;
+        this.numClasses = members.length > 0 ? members[0].getNumClasses() : 2;
+    }
 
+    /** @return the number of classes the ensemble votes between */
+    int getNumClasses(){
+        return this.numClasses;
+    }
+
+    /** Counts the votes for class 1 from every perceptron for one row of attribute values.
+     * Each perceptron reads the row through its stored attribute indices, so the row is shared and never modified.
+     * Large ensembles count their votes in parallel across cores, unless the ensemble has been compiled, in which
+     * case the votes come from the compiled weight matrix.
+     *
+     * @param values the attribute values of the row, in the same order as the training data
+     * @return the number of perceptrons predicting class 1
+     */
+    private int countVotes(double[] values){
+        if (this.compiled != null){
+            return this.compiled.countVotes(values, 0);
+        }
+        if (this.ensemble.length >= PARALLEL_VOTE_THRESHOLD){
+            return (int) IntStream.range(0, this.ensemble.length).parallel()
+                    .filter(i -> this.ensemble[i].classifyValues(values, this.attribIndices[i], null) != 0)
+                    .count();
+        }
+
+        int votes = 0;
         for (int i = 0; i < this.ensemble.length; i++) {
-            EnhancedLinearPerceptron perceptron = this.ensemble[i];
+            if (this.ensemble[i].classifyValues(values, this.attribIndices[i], null) != 0) {
+                votes++;
+            }
+        }
+        return votes;
+    }
 
-            Instance modified = instance;
-            for (Attribute a : attribsUsed[i]){
-                if (a.index() < this.ensemble[0].data.numAttributes() - 1) {
-                    modified.deleteAttributeAt(a.index());
-                }
+    /** Counts the votes for class 1 from every perceptron for an instance. A SparseInstance is scored from its
+     * non-zero values alone, either by the compiled weight matrix or by each perceptron looking up the attributes
+     * it kept; any other instance is read into a row of attribute values, see countVotes(double[])
+     *
+     * @param instance the instance to classify
+     * @return the number of perceptrons predicting class 1
+     */
+    private int countVotes(Instance instance){
+        if (!(instance instanceof SparseInstance)){
+            return countVotes(instance.toDoubleArray());
+        }
+        if (this.compiled != null){
+            return this.compiled.countVotes(instance);
+        }
+
+        int votes = 0;
+        for (int i = 0; i < this.ensemble.length; i++) {
+            if (this.ensemble[i].classifySparse(instance, this.attribIndices[i], null) != 0) {
+                votes++;
             }
+        }
+        return votes;
+    }
 
-            double classPredicted = perceptron.classifyInstance(modified);
-            if (classPredicted == 0) {
-                countVotes[0]++;
+    /** Counts the votes for each class from every perceptron for an instance, for an ensemble of more than two
+     * classes. A SparseInstance is scored from its non-zero values alone by each perceptron looking up the attributes
+     * it kept; any other instance is read into a row of attribute values shared by every perceptron.
+     *
+     * @param instance the instance to classify
+     * @return the number of perceptrons predicting each class
+     */
+    private int[] classVotes(Instance instance){
+        int[] votes = new int[this.numClasses];
+        double[] scores = new double[this.numClasses];
+        if (instance instanceof SparseInstance){
+            for (int i = 0; i < this.ensemble.length; i++) {
+                votes[(int) this.ensemble[i].classifySparse(instance, this.attribIndices[i], scores)]++;
             }
-            else {
-                countVotes[1]++;
+            return votes;
+        }
+
+        double[] values = instance.toDoubleArray();
+        for (int i = 0; i < this.ensemble.length; i++) {
+            votes[(int) this.ensemble[i].classifyValues(values, this.attribIndices[i], scores)]++;
+        }
+        return votes;
+    }
+
+    /** Finds the class with the most votes, ties going to the higher class as they do between two classes
+     *
+     * @param votes the array holding the number of votes for each class
+     * @param offset the index of the votes for class 0
+     * @param numClasses the number of classes
+     * @return the class with the most votes
+     */
+    private static int majority(int[] votes, int offset, int numClasses){
+        int best = 0;
+        for (int k = 1; k < numClasses; k++){
+            if (votes[offset + k] >= votes[offset + best]){
+                best = k;
             }
         }
+        return best;
+    }
+
+    /** Predicts the class of an instance, by classifying it with each perceptron object,
+     * and using a majority vote to find the class.
+     * If metrics are set, the time taken is recorded to them.
+     *
+     * @param instance the instance to classify
+     * @return the predicted class
+     */
+    public double classifyInstance(Instance instance){
+        if (this.metrics == null){
+            return predict(instance);
+        }
+        long start = System.nanoTime();
+        double predictedClass = predict(instance);
+        this.metrics.recordPrediction(System.nanoTime() - start);
+        return predictedClass;
+    }
+
+    /** Predicts the class of an instance by a majority vote, see classifyInstance(Instance)
+     *
+     * @param instance the instance to classify
+     * @return the predicted class
+     */
+    private double predict(Instance instance){
+        if (this.numClasses > 2){
+            return majority(classVotes(instance), 0, this.numClasses);
+        }
+        double predictedClass;
+        int[] countVotes = new int[2];
+
+        countVotes[1] = countVotes(instance);
+        countVotes[0] = this.ensemble.length - countVotes[1];
 
         if (countVotes[0] > countVotes[1]){
             predictedClass = 0;
@@ -133,32 +558,146 @@ public class LinearPerceptronEnsemble {
      * @return an array containing the proportion of votes for each class
      */
     public double[] distributionForInstance(Instance instance){
+        if (this.numClasses > 2){
+            int[] votes = classVotes(instance);
+            double[] distribution = new double[this.numClasses];
+            for (int k = 0; k < this.numClasses; k++){
+                distribution[k] = (double) votes[k]/this.ensemble.length;
+            }
+            return distribution;
+        }
         double[] distribution = new double[2];
         int[] countVotes = new int[2];
 
-        for (int i = 0; i < this.ensemble.length; i++) {
-            EnhancedLinearPerceptron perceptron = this.ensemble[i];
+        countVotes[1] = countVotes(instance);
+        countVotes[0] = this.ensemble.length - countVotes[1];
 
-            Instance modified = instance;
-            for (Attribute a : attribsUsed[i]){
-                if (a.index() < this.ensemble[0].data.numAttributes() - 1) {
-                    modified.deleteAttributeAt(a.index());
-                }
-            }
+        distribution[0] = (double) countVotes[0]/this.ensemble.length;
+        distribution[1] = (double) countVotes[1]/this.ensemble.length;
 
-            double classPredicted = perceptron.classifyInstance(modified);
-            if (classPredicted == -1) {
-                countVotes[0]++;
-            }
-            else {
-                countVotes[1]++;
+        return distribution;
+    }
+
+    /** Predicts the class of every instance in a dataset, scoring all of them together as one batch
+     * Sparse data is scored one instance at a time from its non-zero values rather than expanded into a dense batch.
+     *
+     * @param data the instances to classify
+     * @return the predicted class of each instance
+     */
+    public double[] classifyBatch(Instances data){
+        if (SparseInstances.isSparse(data)){
+            double[] predictions = new double[data.numInstances()];
+            for (int i = 0; i < predictions.length; i++){
+                predictions[i] = predict(data.instance(i));
             }
+            return predictions;
         }
+        DenseInstances dense = DenseInstances.fromInstances(data);
+        double[] predictions = new double[dense.numRows()];
+        classifyBatch(dense.values(), dense.numRows(), dense.numColumns(), predictions);
+        return predictions;
+    }
 
-        distribution[0] = (double) countVotes[0]/this.size;
-        distribution[1] = (double) countVotes[1]/this.size;
+    /** Predicts the class of a batch of rows stored in a row-major array using a majority vote.
+     * The rows are processed in blocks: for each perceptron the block is projected onto the attributes it kept,
+     * and the perceptron scores the projected block as one matrix-vector product. The vote of each perceptron is
+     * counted against the class it predicts, so the same pass serves any number of classes.
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to classify
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes are written to
+     */
+    @Override
+    public void classifyBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        if (this.compiled != null){
+            this.compiled.classifyBatch(rows, offset, nRows, nCols, out);
+            return;
+        }
+        voteBatch(rows, offset, nRows, nCols, out, false);
+    }
 
-        return distribution;
+    /** Scores a batch of rows with the proportion of the perceptrons voting for class 1. An ensemble of more than two
+     * classes scores with its predicted classes.
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to score
+     * @param nCols the number of values stored for each row
+     * @param out the array the scores are written to
+     */
+    @Override
+    public void scoreBatch(double[] rows, int offset, int nRows, int nCols, double[] out){
+        if (this.compiled != null){
+            this.compiled.scoreBatch(rows, offset, nRows, nCols, out);
+            return;
+        }
+        voteBatch(rows, offset, nRows, nCols, out, this.numClasses == 2);
+    }
+
+    /** Predicts the class of a row from the proportion of votes for class 1, ties going to class 1 as they do in the
+     * majority vote
+     *
+     * @param score the proportion of the perceptrons voting for class 1
+     * @return the predicted class
+     */
+    @Override
+    public double classifyScore(double score){
+        return score >= 0.5 ? 1 : 0;
+    }
+
+    /** Counts the votes of every perceptron for a batch of rows, see classifyBatch(double[], int, int, int, double[])
+     *
+     * @param rows the array holding the attribute values of each row, laid out in the same order as the training data
+     * @param offset the index of the first value of the first row
+     * @param nRows the number of rows to vote on
+     * @param nCols the number of values stored for each row
+     * @param out the array the predicted classes, or the proportions of votes for class 1, are written to
+     * @param proportion true to write the proportion of votes for class 1 rather than the predicted class
+     */
+    private void voteBatch(double[] rows, int offset, int nRows, int nCols, double[] out, boolean proportion){
+        if (rows.length < offset + nRows*nCols || out.length < nRows){
+            throw new IllegalArgumentException("Arrays are too small for " + nRows + " rows");
+        }
+
+        int maxKept = 0;
+        for (int[] kept : this.attribIndices){
+            maxKept = Math.max(maxKept, kept.length);
+        }
+        double[] projected = new double[BATCH_BLOCK_ROWS*maxKept];
+        double[] memberOut = new double[BATCH_BLOCK_ROWS];
+        int[] countVotes = new int[BATCH_BLOCK_ROWS*this.numClasses];
+
+        for (int start = 0; start < nRows; start += BATCH_BLOCK_ROWS){
+            int blockRows = Math.min(BATCH_BLOCK_ROWS, nRows - start);
+            Arrays.fill(countVotes, 0);
+
+            for (int m = 0; m < this.ensemble.length; m++){
+                int[] kept = this.attribIndices[m];
+                for (int r = 0; r < blockRows; r++){
+                    int rowOffset = offset + (start + r)*nCols;
+                    int projectedOffset = r*kept.length;
+                    for (int k = 0; k < kept.length; k++){
+                        projected[projectedOffset + k] = rows[rowOffset + kept[k]];
+                    }
+                }
+
+                this.ensemble[m].classifyBatch(projected, blockRows, kept.length, memberOut);
+                for (int r = 0; r < blockRows; r++){
+                    countVotes[r*this.numClasses + (int) memberOut[r]]++;
+                }
+            }
+
+            for (int r = 0; r < blockRows; r++){
+                if (proportion){
+                    out[start + r] = (double) countVotes[r*this.numClasses + 1]/this.ensemble.length;
+                }
+                else {
+                    out[start + r] = majority(countVotes, r*this.numClasses, this.numClasses);
+                }
+            }
+        }
     }
 
     public static void main(String[] args) throws Exception {
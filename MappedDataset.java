@@ -0,0 +1,277 @@
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Class modelling a dataset stored in a compact binary file which is read through memory mapping
+ *  The file holds a 32 byte header (magic number, version, bytes per value, number of columns, number of rows),
+ *  then a row-major block of attribute values stored as float64 or float32, then a block of float64 class values.
+ *  As in DenseInstances, each row holds every attribute of the original instance, including the class attribute.
+ *  Because the file is memory mapped, repeated epochs are served straight from the page cache, and several
+ *  training processes on the same host share a single copy of the data.
+ */
+public class MappedDataset implements Closeable {
+
+    private static final int MAGIC = 0x50435054;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final int valueBytes;
+    private final int numColumns;
+    private final long numRows;
+    private final int rowsPerSegment;
+    private final DoubleBuffer[] doubleSegments;
+    private final FloatBuffer[] floatSegments;
+    private final DoubleBuffer[] labelSegments;
+
+    /** Maps an existing binary dataset file, checking its header against the size of the file first.
+     * The file is closed again if it cannot be mapped.
+     *
+     * @param file the file to map
+     * @throws IOException if the file cannot be read or is not a binary dataset
+     */
+    private MappedDataset(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = this.channel.size();
+            if (size < HEADER_BYTES){
+                throw new IOException(file + " is not a binary dataset");
+            }
+            ByteBuffer header = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION){
+                throw new IOException(file + " is not a version " + VERSION + " binary dataset");
+            }
+            this.valueBytes = header.getInt(8);
+            this.numColumns = header.getInt(12);
+            this.numRows = header.getLong(16);
+            if (this.valueBytes != 4 && this.valueBytes != 8){
+                throw new IOException(file + " stores " + this.valueBytes + " bytes per value, not 4 or 8");
+            }
+            if (this.numColumns <= 0 || this.numRows < 0){
+                throw new IOException(file + " has a corrupt header");
+            }
+
+            long rowBytes = (long) this.numColumns*this.valueBytes;
+            if (this.numRows > (size - HEADER_BYTES)/(rowBytes + 8) || HEADER_BYTES + this.numRows*(rowBytes + 8) != size){
+                throw new IOException(file + " is truncated");
+            }
+            this.rowsPerSegment = (int) Math.max(1, Math.min(MAX_SEGMENT_BYTES/rowBytes, MAX_SEGMENT_BYTES/8));
+            int numSegments = (int) ((this.numRows + this.rowsPerSegment - 1)/this.rowsPerSegment);
+
+            this.doubleSegments = this.valueBytes == 8 ? new DoubleBuffer[numSegments] : null;
+            this.floatSegments = this.valueBytes == 4 ? new FloatBuffer[numSegments] : null;
+            this.labelSegments = new DoubleBuffer[numSegments];
+            long labelsStart = HEADER_BYTES + this.numRows*rowBytes;
+
+            for (int s = 0; s < numSegments; s++){
+                long firstRow = (long) s*this.rowsPerSegment;
+                long segmentRows = Math.min(this.rowsPerSegment, this.numRows - firstRow);
+                ByteBuffer values = this.channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + firstRow*rowBytes,
+                        segmentRows*rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+                if (this.valueBytes == 8){
+                    this.doubleSegments[s] = values.asDoubleBuffer();
+                }
+                else {
+                    this.floatSegments[s] = values.asFloatBuffer();
+                }
+                this.labelSegments[s] = this.channel.map(FileChannel.MapMode.READ_ONLY, labelsStart + firstRow*8,
+                        segmentRows*8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+        }
+        catch (IOException | RuntimeException e){
+            try {
+                this.channel.close();
+            }
+            catch (IOException closing){
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+    }
+
+    /** Opens a binary dataset file by memory mapping it
+     *
+     * @param file the file to open
+     * @return the mapped dataset
+     * @throws IOException if the file cannot be read or is not a binary dataset
+     */
+    public static MappedDataset open(Path file) throws IOException {
+        return new MappedDataset(file);
+    }
+
+    /** Writes a dataset to a binary dataset file
+     *
+     * @param data the dataset to write
+     * @param file the file to write to
+     * @param singlePrecision true to store the attribute values as float32, false for float64
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Instances data, Path file, boolean singlePrecision) throws IOException {
+        try (Writer writer = new Writer(file, data.numAttributes(), singlePrecision)){
+            for (int i = 0; i < data.numInstances(); i++){
+                writer.add(data.instance(i));
+            }
+        }
+    }
+
+    /** Converts an ARFF or CSV data source to a binary dataset file, streaming it so it is never fully loaded.
+     * If the class index of the source is not set, the last attribute is used as the class.
+     *
+     * @param source the data source to convert
+     * @param file the file to write to
+     * @param singlePrecision true to store the attribute values as float32, false for float64
+     * @throws Exception if the source cannot be read or the file cannot be written
+     */
+    public static void convert(DataSource source, Path file, boolean singlePrecision) throws Exception {
+        Instances structure = source.getStructure();
+        if (structure.classIndex() < 0){
+            structure.setClassIndex(structure.numAttributes() - 1);
+        }
+        try (Writer writer = new Writer(file, structure.numAttributes(), singlePrecision)){
+            while (source.hasMoreElements(structure)){
+                writer.add(source.nextElement(structure));
+            }
+        }
+    }
+
+    /** @return the number of rows */
+    public long numRows(){
+        return this.numRows;
+    }
+
+    /** @return the number of values in each row */
+    public int numColumns(){
+        return this.numColumns;
+    }
+
+    /** Copies consecutive rows out of the mapped file into primitive buffers
+     *
+     * @param firstRow the index of the first row to copy
+     * @param count the number of rows to copy
+     * @param values the buffer the row-major attribute values are written to
+     * @param classValues the buffer the class values are written to
+     */
+    public void copyRows(long firstRow, int count, double[] values, double[] classValues){
+        for (int r = 0; r < count; r++){
+            long row = firstRow + r;
+            int segment = (int) (row/this.rowsPerSegment);
+            int index = (int) (row%this.rowsPerSegment);
+            int offset = r*this.numColumns;
+
+            if (this.doubleSegments != null){
+                this.doubleSegments[segment].get(index*this.numColumns, values, offset, this.numColumns);
+            }
+            else {
+                FloatBuffer floats = this.floatSegments[segment];
+                int start = index*this.numColumns;
+                for (int attr = 0; attr < this.numColumns; attr++){
+                    values[offset + attr] = floats.get(start + attr);
+                }
+            }
+            classValues[r] = this.labelSegments[segment].get(index);
+        }
+    }
+
+    /** Closes the file, the mappings remain valid until they are garbage collected
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /** Class writing rows to a binary dataset file through a buffer. The class values are written to a temporary
+     * file alongside, and appended after the attribute values once the number of rows is known
+     */
+    private static final class Writer implements Closeable {
+
+        private final Path labelsFile;
+        private final FileChannel values;
+        private final FileChannel labels;
+        private final ByteBuffer valueBuffer;
+        private final ByteBuffer labelBuffer;
+        private final int numColumns;
+        private final boolean singlePrecision;
+        private long numRows;
+
+        Writer(Path file, int numColumns, boolean singlePrecision) throws IOException {
+            this.labelsFile = Files.createTempFile(file.toAbsolutePath().getParent(), "labels", ".tmp");
+            this.values = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.labels = FileChannel.open(this.labelsFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            this.numColumns = numColumns;
+            this.singlePrecision = singlePrecision;
+            int rowBytes = numColumns*(singlePrecision ? 4 : 8);
+            this.valueBuffer = ByteBuffer.allocate(Math.max(WRITE_BUFFER_BYTES, rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+            this.labelBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            this.values.position(HEADER_BYTES);
+        }
+
+        void add(Instance instance) throws IOException {
+            if (this.valueBuffer.remaining() < this.numColumns*(this.singlePrecision ? 4 : 8)){
+                flush(this.valueBuffer, this.values);
+            }
+            for (int attr = 0; attr < this.numColumns; attr++){
+                if (this.singlePrecision){
+                    this.valueBuffer.putFloat((float) instance.value(attr));
+                }
+                else {
+                    this.valueBuffer.putDouble(instance.value(attr));
+                }
+            }
+
+            if (this.labelBuffer.remaining() < 8){
+                flush(this.labelBuffer, this.labels);
+            }
+            this.labelBuffer.putDouble(instance.classValue());
+            this.numRows++;
+        }
+
+        private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush(this.valueBuffer, this.values);
+                flush(this.labelBuffer, this.labels);
+
+                long transferred = 0;
+                long size = this.labels.size();
+                while (transferred < size){
+                    transferred += this.labels.transferTo(transferred, size - transferred, this.values);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(this.singlePrecision ? 4 : 8).putInt(this.numColumns);
+                header.putLong(this.numRows).putLong(0L);
+                header.flip();
+                this.values.write(header, 0);
+            }
+            finally {
+                this.values.close();
+                this.labels.close();
+                Files.deleteIfExists(this.labelsFile);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Class writing trained perceptrons to a compact binary model file and reading them back
+ *  The file holds a 24 byte header (magic number, version, model type, flags, total size in bytes) followed by the
+ *  model itself, all little endian. A linear model is stored as its weight vector and threshold, and an enhanced
+ *  perceptron adds the running statistics of its scaler, so it can carry on learning with updateClassifier once
+ *  read back. An ensemble stores each perceptron along with the indices of the attributes it kept, and whether it
+ *  was compiled, in which case it is compiled again in the same form when read.
+ *  Only what is needed to classify is stored, never the training data, so a model file is a small fraction of the
+ *  size of the serialised classifier and reads straight into primitive arrays without any object graph to rebuild.
+ *  A file can be read through a buffer, or memory mapped so the arrays are copied straight out of the page cache.
+ */
+public final class ModelFile {
+
+    private static final int MAGIC = 0x50434D46;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+
+    private static final int LINEAR_PERCEPTRON = 1;
+    private static final int ENHANCED_PERCEPTRON = 2;
+    private static final int ENSEMBLE = 3;
+
+    private static final int NOT_COMPILED = 0;
+    private static final int COMPILED_DENSE = 1;
+    private static final int COMPILED_SPARSE = 2;
+
+    private ModelFile(){
+    }
+
+    /** Writes a linear perceptron to a model file
+     *
+     * @param perceptron the built perceptron to write
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(LinearPerceptron perceptron, Path file) throws IOException {
+        double[] linearModel = built(perceptron.getLinearModel());
+        ByteBuffer buffer = allocate(linearBytes(linearModel), LINEAR_PERCEPTRON, 0);
+        putLinear(buffer, linearModel, perceptron.getThreshold());
+        write(buffer, file);
+    }
+
+    /** Writes an enhanced linear perceptron, along with the statistics of its scaler, to a model file
+     *
+     * @param perceptron the built perceptron to write
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(EnhancedLinearPerceptron perceptron, Path file) throws IOException {
+        twoClasses(perceptron.getNumClasses());
+        built(perceptron.getLinearModel());
+        ByteBuffer buffer = allocate(enhancedBytes(perceptron), ENHANCED_PERCEPTRON, 0);
+        putEnhanced(buffer, perceptron);
+        write(buffer, file);
+    }
+
+    /** Writes an ensemble to a model file, recording whether it was compiled
+     *
+     * @param ensemble the built ensemble to write
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(LinearPerceptronEnsemble ensemble, Path file) throws IOException {
+        EnhancedLinearPerceptron[] members = ensemble.getMembers();
+        int[][] attribIndices = ensemble.getAttribIndices();
+        if (members == null){
+            throw new IllegalStateException("The ensemble has not been built");
+        }
+        twoClasses(ensemble.getNumClasses());
+
+        long bytes = 4;
+        for (int m = 0; m < members.length; m++){
+            built(members[m].getLinearModel());
+            bytes += 4 + 4L*attribIndices[m].length + enhancedBytes(members[m]);
+        }
+
+        CompiledEnsemble compiled = ensemble.getCompiled();
+        int flags = compiled == null ? NOT_COMPILED : compiled.isSparse() ? COMPILED_SPARSE : COMPILED_DENSE;
+        ByteBuffer buffer = allocate(bytes, ENSEMBLE, flags);
+        buffer.putInt(members.length);
+        for (int m = 0; m < members.length; m++){
+            buffer.putInt(attribIndices[m].length);
+            buffer.asIntBuffer().put(attribIndices[m]);
+            buffer.position(buffer.position() + 4*attribIndices[m].length);
+            putEnhanced(buffer, members[m]);
+        }
+        write(buffer, file);
+    }
+
+    /** Reads a linear perceptron from a model file
+     *
+     * @param file the file to read
+     * @param mapped true to memory map the file, false to read it through a buffer
+     * @return the perceptron, ready to classify
+     * @throws IOException if the file cannot be read or does not hold a linear perceptron
+     */
+    public static LinearPerceptron readLinearPerceptron(Path file, boolean mapped) throws IOException {
+        ByteBuffer buffer = open(file, mapped, LINEAR_PERCEPTRON);
+        try {
+            int length = buffer.getInt();
+            double threshold = buffer.getDouble();
+            LinearPerceptron perceptron = new LinearPerceptron();
+            perceptron.setModel(getDoubles(buffer, length), threshold);
+            return perceptron;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e){
+            throw new IOException(file + " is truncated or corrupt", e);
+        }
+    }
+
+    /** Reads an enhanced linear perceptron from a model file
+     *
+     * @param file the file to read
+     * @param mapped true to memory map the file, false to read it through a buffer
+     * @return the perceptron, ready to classify or to be updated
+     * @throws IOException if the file cannot be read or does not hold an enhanced linear perceptron
+     */
+    public static EnhancedLinearPerceptron readEnhancedLinearPerceptron(Path file, boolean mapped) throws IOException {
+        ByteBuffer buffer = open(file, mapped, ENHANCED_PERCEPTRON);
+        try {
+            return getEnhanced(buffer);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e){
+            throw new IOException(file + " is truncated or corrupt", e);
+        }
+    }
+
+    /** Reads an ensemble from a model file, compiling it again if it was compiled when written
+     *
+     * @param file the file to read
+     * @param mapped true to memory map the file, false to read it through a buffer
+     * @return the ensemble, ready to classify
+     * @throws IOException if the file cannot be read or does not hold an ensemble
+     */
+    public static LinearPerceptronEnsemble readEnsemble(Path file, boolean mapped) throws IOException {
+        ByteBuffer buffer = open(file, mapped, ENSEMBLE);
+        int flags = buffer.getInt(12);
+        try {
+            int numMembers = buffer.getInt();
+            EnhancedLinearPerceptron[] members = new EnhancedLinearPerceptron[numMembers];
+            int[][] attribIndices = new int[numMembers][];
+            for (int m = 0; m < numMembers; m++){
+                attribIndices[m] = new int[buffer.getInt()];
+                buffer.asIntBuffer().get(attribIndices[m]);
+                buffer.position(buffer.position() + 4*attribIndices[m].length);
+                members[m] = getEnhanced(buffer);
+            }
+
+            LinearPerceptronEnsemble ensemble = new LinearPerceptronEnsemble();
+            ensemble.setModel(members, attribIndices);
+            if (flags != NOT_COMPILED){
+                ensemble.compile(flags == COMPILED_SPARSE);
+            }
+            return ensemble;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e){
+            throw new IOException(file + " is truncated or corrupt", e);
+        }
+    }
+
+    /** @param linearModel the weight vector of a classifier
+     *  @return the weight vector, checked to have been built
+     */
+    private static double[] built(double[] linearModel){
+        if (linearModel == null){
+            throw new IllegalStateException("The classifier has not been built");
+        }
+        return linearModel;
+    }
+
+    /** Checks a model is of two classes, the only models a model file holds
+     *
+     * @param numClasses the number of classes of the model
+     */
+    private static void twoClasses(int numClasses){
+        if (numClasses > 2){
+            throw new IllegalArgumentException("Model files hold models of two classes, not " + numClasses);
+        }
+    }
+
+    /** @param linearModel the weight vector to store
+     *  @return the number of bytes a linear model takes up
+     */
+    private static long linearBytes(double[] linearModel){
+        return 4 + 8 + 8L*linearModel.length;
+    }
+
+    /** @param perceptron the perceptron to store
+     *  @return the number of bytes an enhanced perceptron takes up
+     */
+    private static long enhancedBytes(EnhancedLinearPerceptron perceptron){
+        StandardScaler scaler = perceptron.getScaler();
+        long bytes = linearBytes(perceptron.getLinearModel()) + 4;
+        if (scaler != null){
+            bytes += 8 + 16L*scaler.numColumns();
+        }
+        return bytes;
+    }
+
+    /** Writes a linear model: the number of weights, the threshold, then the weights
+     *
+     * @param buffer the buffer to write to
+     * @param linearModel the weight vector
+     * @param threshold the threshold
+     */
+    private static void putLinear(ByteBuffer buffer, double[] linearModel, double threshold){
+        buffer.putInt(linearModel.length);
+        buffer.putDouble(threshold);
+        putDoubles(buffer, linearModel);
+    }
+
+    /** Writes an enhanced perceptron: its linear model, then the number of columns of its scaler, or -1 if it has
+     * none, followed by the scaler's row count, means and sums of squared differences
+     *
+     * @param buffer the buffer to write to
+     * @param perceptron the perceptron to write
+     */
+    private static void putEnhanced(ByteBuffer buffer, EnhancedLinearPerceptron perceptron){
+        putLinear(buffer, perceptron.getLinearModel(), perceptron.getThreshold());
+        StandardScaler scaler = perceptron.getScaler();
+        if (scaler == null){
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(scaler.numColumns());
+        buffer.putLong(scaler.count());
+        putDoubles(buffer, scaler.means());
+        putDoubles(buffer, scaler.squares());
+    }
+
+    /** Reads an enhanced perceptron written by putEnhanced
+     *
+     * @param buffer the buffer to read from
+     * @return the perceptron
+     */
+    private static EnhancedLinearPerceptron getEnhanced(ByteBuffer buffer){
+        int length = buffer.getInt();
+        double threshold = buffer.getDouble();
+        double[] linearModel = getDoubles(buffer, length);
+
+        StandardScaler scaler = null;
+        int numColumns = buffer.getInt();
+        if (numColumns >= 0){
+            long count = buffer.getLong();
+            double[] means = getDoubles(buffer, numColumns);
+            double[] squares = getDoubles(buffer, numColumns);
+            scaler = new StandardScaler(means, squares, count);
+        }
+
+        EnhancedLinearPerceptron perceptron = new EnhancedLinearPerceptron();
+        perceptron.setModel(linearModel, threshold, scaler);
+        return perceptron;
+    }
+
+    /** Writes an array of doubles in one bulk copy, advancing the buffer past them
+     *
+     * @param buffer the buffer to write to
+     * @param values the values to write
+     */
+    private static void putDoubles(ByteBuffer buffer, double[] values){
+        buffer.asDoubleBuffer().put(values);
+        buffer.position(buffer.position() + 8*values.length);
+    }
+
+    /** Reads an array of doubles in one bulk copy, advancing the buffer past them
+     *
+     * @param buffer the buffer to read from
+     * @param length the number of values to read
+     * @return the values
+     */
+    private static double[] getDoubles(ByteBuffer buffer, int length){
+        double[] values = new double[length];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8*length);
+        return values;
+    }
+
+    /** Allocates the buffer for a model file and writes its header
+     *
+     * @param modelBytes the number of bytes the model takes up, after the header
+     * @param type the type of model
+     * @param flags the flags of the model
+     * @return the buffer, positioned after the header
+     */
+    private static ByteBuffer allocate(long modelBytes, int type, int flags){
+        long totalBytes = HEADER_BYTES + modelBytes;
+        if (totalBytes > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("The model is too large for a model file: " + totalBytes + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) totalBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(type);
+        buffer.putInt(flags);
+        buffer.putLong(totalBytes);
+        return buffer;
+    }
+
+    /** Writes a filled buffer out to a file, replacing its contents
+     *
+     * @param buffer the buffer to write
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    private static void write(ByteBuffer buffer, Path file) throws IOException {
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /** Opens a model file, checking its header
+     *
+     * @param file the file to open
+     * @param mapped true to memory map the file, false to read it into a buffer
+     * @param type the type of model the file must hold
+     * @return the contents of the file, positioned after the header
+     * @throws IOException if the file cannot be read, or is not a model file holding the type of model
+     */
+    private static ByteBuffer open(Path file, boolean mapped, int type) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE){
+                throw new IOException(file + " is not a model file");
+            }
+            if (mapped){
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0){
+                }
+                buffer.flip();
+            }
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+            throw new IOException(file + " is not a version " + VERSION + " model file");
+        }
+        if (buffer.getInt(8) != type){
+            throw new IOException(file + " holds a different type of model");
+        }
+        if (buffer.getLong(16) != buffer.limit()){
+            throw new IOException(file + " is truncated");
+        }
+        buffer.position(HEADER_BYTES);
+        return buffer;
+    }
+
+}
@@ -0,0 +1,228 @@
+import java.util.Arrays;
+
+/** Class carrying out the on-line and off-line learning rules for a one-vs-rest linear perceptron over K classes
+ *  The K perceptrons are held as one K x numColumns weight matrix, row k holding the weights of class k against the
+ *  rest for every non-class attribute followed by its bias. The class attribute is the last column, as elsewhere, and
+ *  is never weighted. Each row is scored against all K perceptrons as one matrix-vector product and every perceptron
+ *  that misclassifies it is updated, so an epoch trains all K perceptrons in a single scan over the data rather than
+ *  one scan per class.
+ *  Perceptron k is trained towards +1 for rows of class k and -1 for every other row, and a row is predicted as the
+ *  class whose perceptron gives it the highest score.
+ */
+public class MulticlassPerceptronTrainer {
+
+    private double learningRate = 1.0;
+    private int maxIterations = 1000;
+    private int batchSize = 0;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private EpochListener epochListener;
+
+    /** @param learningRate the learning rate applied to the weight change */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /** @param maxIterations the maximum number of epochs to run */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /** @param batchSize the number of rows in each mini-batch of the off-line rule, or 0 to update once per epoch */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /** @param stoppingPolicy the policy deciding when training stops before the maximum number of iterations */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** @param epochListener the listener the metrics of each epoch are reported to, or null */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** Runs the on-line learning rule, stopping after the maximum number of iterations, or earlier as decided by the
+     * stopping policy: by default after an epoch in which no perceptron misclassified any row.
+     * A row counts as one error if any of the perceptrons misclassified it.
+     *
+     * @param data the dataset to train on, with class values 0 to numClasses - 1
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param numClasses the number of classes
+     * @param weights the initial weight matrix, numClasses rows of numColumns weights, updated in place
+     * @return the final weight matrix
+     */
+    public double[] trainOnline(DenseInstances data, int[] rows, int numClasses, double[] weights){
+        int numColumns = data.numColumns();
+        int numRows = rows != null ? rows.length : data.numRows();
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        double[] scores = new double[numClasses];
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int r = 0; r < numRows; r++){
+                int i = rows != null ? rows[r] : r;
+                double rowLoss = updateRow(weights, weights, numClasses, numColumns, values, data.offset(i), classValues[i], scores);
+                if (rowLoss != 0.0){
+                    errors++;
+                    loss += rowLoss;
+                }
+            }
+
+            if (run.epochFinished(errors, loss, weights)){
+                break;
+            }
+        }
+
+        return weights;
+    }
+
+    /** Runs the off-line learning rule in mini-batches (the whole dataset by default), stopping after the maximum
+     * number of iterations, or earlier as decided by the stopping policy. The change to the whole weight matrix over
+     * a mini-batch is gathered in a buffer and added once the mini-batch has been scored, so every row of a
+     * mini-batch is scored against the same weights.
+     *
+     * @param data the dataset to train on, with class values 0 to numClasses - 1
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param numClasses the number of classes
+     * @param weights the initial weight matrix, numClasses rows of numColumns weights, updated in place
+     * @return the final weight matrix
+     */
+    public double[] trainOffline(DenseInstances data, int[] rows, int numClasses, double[] weights){
+        int numColumns = data.numColumns();
+        int numRows = rows != null ? rows.length : data.numRows();
+        int batchRows = Math.max(1, this.batchSize > 0 ? Math.min(this.batchSize, numRows) : numRows);
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        double[] scores = new double[numClasses];
+        double[] weightChange = new double[weights.length];
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int start = 0; start < numRows; start += batchRows){
+                int end = Math.min(numRows, start + batchRows);
+                Arrays.fill(weightChange, 0.0);
+
+                for (int p = start; p < end; p++){
+                    int i = rows != null ? rows[p] : p;
+                    double rowLoss = updateRow(weights, weightChange, numClasses, numColumns, values, data.offset(i),
+                            classValues[i], scores);
+                    if (rowLoss != 0.0){
+                        errors++;
+                        loss += rowLoss;
+                    }
+                }
+
+                VectorOps.axpy(1.0, weightChange, 0, weights, 0, weights.length);
+            }
+
+            if (run.epochFinished(errors, loss, weights)){
+                break;
+            }
+        }
+
+        return weights;
+    }
+
+    /** Runs the on-line learning rule over a view of a shared snapshot, gathering one row of the view at a time, see
+     * trainOnline(DenseInstances, int[], int, double[])
+     *
+     * @param view the rows and columns to train on, with class values 0 to numClasses - 1
+     * @param numClasses the number of classes
+     * @param weights the initial weight matrix, numClasses rows of one weight per column of the view, updated in place
+     * @return the final weight matrix
+     */
+    public double[] trainOnline(DenseView view, int numClasses, double[] weights){
+        int numColumns = view.numColumns();
+        double[] row = new double[numColumns];
+        double[] scores = new double[numClasses];
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int r = 0; r < view.numRows(); r++){
+                view.copyRow(r, row);
+                double rowLoss = updateRow(weights, weights, numClasses, numColumns, row, 0, view.classValue(r), scores);
+                if (rowLoss != 0.0){
+                    errors++;
+                    loss += rowLoss;
+                }
+            }
+
+            if (run.epochFinished(errors, loss, weights)){
+                break;
+            }
+        }
+
+        return weights;
+    }
+
+    /** Applies the one-vs-rest rule to one row: scores it against every class as one matrix-vector product, then adds
+     * the weight change of each class that misclassifies it to the change matrix
+     *
+     * @param weights the weight matrix the row is scored against
+     * @param change the matrix the weight changes are added to, the weight matrix itself for the on-line rule
+     * @param numClasses the number of classes
+     * @param numColumns the number of weights stored for each class
+     * @param values the array holding the row
+     * @param offset the index of the first value of the row
+     * @param classValue the class value of the row
+     * @param scores a buffer of at least numClasses values
+     * @return the squared error of the row summed over the classes, zero if every class classified it correctly
+     */
+    private double updateRow(double[] weights, double[] change, int numClasses, int numColumns, double[] values,
+                             int offset, double classValue, double[] scores){
+        int numAttributes = numColumns - 1;
+        VectorOps.gemv(weights, numClasses, numColumns, values, offset, numAttributes, scores);
+
+        double loss = 0.0;
+        for (int k = 0; k < numClasses; k++){
+            double target = classValue == k ? 1.0 : -1.0;
+            double localError = target - java.lang.Math.signum(scores[k] + weights[k*numColumns + numAttributes]);
+            if (localError != 0.0){
+                loss += localError*localError;
+                double rate = 0.5*this.learningRate*localError;
+                VectorOps.axpy(rate, values, offset, change, k*numColumns, numAttributes);
+                change[k*numColumns + numAttributes] += rate;
+            }
+        }
+        return loss;
+    }
+
+    /** Predicts the class of a row from the scores of every perceptron, ties going to the lowest class
+     *
+     * @param weights the weight matrix, numClasses rows of rowStride weights
+     * @param intercepts the amount added to the score of each class, or null to add the bias held in the matrix
+     * @param numClasses the number of classes
+     * @param rowStride the number of weights stored for each class, the attribute weights followed by the bias
+     * @param values the array holding the attribute values of the row
+     * @param offset the index of the first value of the row
+     * @param scores a buffer of at least numClasses values the scores are written to
+     * @return the predicted class
+     */
+    static int predict(double[] weights, double[] intercepts, int numClasses, int rowStride,
+                       double[] values, int offset, double[] scores){
+        int numAttributes = rowStride - 1;
+        VectorOps.gemv(weights, numClasses, rowStride, values, offset, numAttributes, scores);
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < numClasses; k++){
+            double score = scores[k] + (intercepts != null ? intercepts[k] : weights[k*rowStride + numAttributes]);
+            if (score > bestScore){
+                bestScore = score;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+}
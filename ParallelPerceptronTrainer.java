@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** Class carrying out the on-line learning rule for a linear perceptron on several threads at once
+ *  The rows are split into one contiguous shard per thread, and every epoch each thread streams through its own shard
+ *  applying the on-line rule. How the threads share the weight vector depends on the mode:
+ *  HOGWILD updates one shared weight vector without any locking, accepting that concurrent updates may overwrite
+ *  each other, which on sparse data is rare; STRIPED gives each thread a private accumulator, one stripe per shard,
+ *  starting from the shared weights, and at the end of the epoch adds the weight change of every stripe to the shared
+ *  weights in shard order, so no update is ever lost; AVERAGING also gives each thread a private copy of the weights
+ *  for the epoch, but averages the copies, in shard order, at the end of it.
+ *  STRIPED and AVERAGING are reproducible, giving the same model for the same data and number of threads, as each
+ *  thread only reads its own stripe and the stripes are reduced in a fixed order. With HOGWILD each row is scored
+ *  against whatever the other threads have written so far, so the model depends on how the threads were scheduled.
+ *  Dense data is trained on through a DenseInstances snapshot, and sparse data through a SparseInstances snapshot,
+ *  each update then touching only the non-zero values of a row.
+ *  Training stops after the maximum number of iterations, or earlier as decided by the StoppingPolicy: by default
+ *  after an epoch with no errors.
+ */
+public class ParallelPerceptronTrainer {
+
+    /** The ways the threads can share the weight vector */
+    public enum Mode {
+        HOGWILD, STRIPED, AVERAGING
+    }
+
+    private Mode mode = Mode.HOGWILD;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int maxIterations = 1000;
+    private double learningRate = 1.0;
+    private ExecutorService executor;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private EpochListener epochListener;
+
+    /** @param mode how the threads share the weight vector */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /** @param numThreads the number of shards, and so threads, the rows are split into */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /** @param maxIterations the maximum number of epochs to run */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /** @param learningRate the learning rate applied to the weight change */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /** @param executor the executor the shards are worked on, the common fork-join pool if not set */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** @param stoppingPolicy the policy deciding when training stops before the maximum number of iterations */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** @param epochListener the listener the metrics of each epoch are reported to, or null */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** The on-line learning rule applied to one shard of rows */
+    @FunctionalInterface
+    private interface ShardRule {
+
+        /** @param weights the weight vector to update
+         *  @param start the first row of the shard
+         *  @param end the row after the last row of the shard
+         *  @return the number of misclassified rows and their squared error
+         */
+        double[] apply(double[] weights, int start, int end);
+    }
+
+    /** Trains the weight vector on the data
+     *
+     * @param data the dataset to train on
+     * @param weightVector the initial weight vector, one weight per column plus the bias
+     * @return the final weight vector
+     */
+    public double[] train(DenseInstances data, double[] weightVector){
+        return train(data.numRows(), weightVector, (weights, start, end) -> trainShard(data, weights, start, end));
+    }
+
+    /** Trains the weight vector on a sparse snapshot of the data, on the raw attribute values
+     *
+     * @param data the sparse dataset to train on
+     * @param weightVector the initial weight vector, one weight per column plus the bias
+     * @return the final weight vector
+     */
+    public double[] train(SparseInstances data, double[] weightVector){
+        return train(data.numRows(), weightVector, (weights, start, end) -> trainShard(data, weights, start, end));
+    }
+
+    /** Runs the epochs, splitting the rows into shards trained on concurrently by the given rules
+     *
+     * @param numRows the number of rows to train on
+     * @param weightVector the initial weight vector, one weight per column plus the bias
+     * @param rule applies the on-line rule to a shard, updating the weight vector it is given
+     * @return the final weight vector
+     */
+    private double[] train(int numRows, double[] weightVector, ShardRule rule){
+        int numShards = Math.max(1, Math.min(this.numThreads, numRows));
+        int shardRows = (numRows + numShards - 1)/numShards;
+        int numWeights = weightVector.length - 1;
+
+        double[][] stripes = this.mode != Mode.HOGWILD ? new double[numShards][weightVector.length] : null;
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            List<Callable<double[]>> tasks = new ArrayList<>(numShards);
+            for (int s = 0; s < numShards; s++){
+                int shard = s;
+                int start = s*shardRows;
+                int end = Math.min(numRows, start + shardRows);
+                tasks.add(() -> {
+                    if (stripes != null){
+                        System.arraycopy(weightVector, 0, stripes[shard], 0, weightVector.length);
+                        return rule.apply(stripes[shard], start, end);
+                    }
+                    return rule.apply(weightVector, start, end);
+                });
+            }
+
+            int errors = 0;
+            double loss = 0.0;
+            for (double[] shardResult : runAll(tasks)){
+                errors += (int) shardResult[0];
+                loss += shardResult[1];
+            }
+
+            if (this.mode == Mode.STRIPED){
+                for (int j = 0; j < numWeights; j++){
+                    double change = 0.0;
+                    for (int s = 0; s < numShards; s++){
+                        change += stripes[s][j] - weightVector[j];
+                    }
+                    weightVector[j] += change;
+                }
+            }
+            else if (this.mode == Mode.AVERAGING){
+                for (int j = 0; j < numWeights; j++){
+                    double sum = 0.0;
+                    for (int s = 0; s < numShards; s++){
+                        sum += stripes[s][j];
+                    }
+                    weightVector[j] = sum/numShards;
+                }
+            }
+
+            if (run.epochFinished(errors, loss, weightVector)){
+                break;
+            }
+        }
+
+        return weightVector;
+    }
+
+    /** Runs the tasks of one epoch and waits for them all to finish
+     *
+     * @param tasks the tasks to run
+     * @return the result of each task, in order
+     */
+    private List<double[]> runAll(List<Callable<double[]>> tasks){
+        ExecutorService pool = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+        List<double[]> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<double[]> future : pool.invokeAll(tasks)){
+                results.add(future.get());
+            }
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Training was interrupted", e);
+        }
+        catch (ExecutionException e){
+            throw new IllegalStateException("Training failed", e.getCause());
+        }
+        return results;
+    }
+
+    /** Applies the on-line learning rule to one shard of rows, updating the weight vector without locking
+     *
+     * @param data the dataset being trained on
+     * @param weightVector the weight vector to update
+     * @param start the first row of the shard
+     * @param end the row after the last row of the shard
+     * @return the number of misclassified rows and their squared error
+     */
+    private double[] trainShard(DenseInstances data, double[] weightVector, int start, int end){
+        double[] values = data.values();
+        double[] classValues = data.classValues();
+        int numColumns = data.numColumns();
+        int errors = 0;
+        double loss = 0.0;
+
+        for (int i = start; i < end; i++){
+            int offset = data.offset(i);
+            double sum = VectorOps.dot(weightVector, 0, values, offset, numColumns);
+            double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+            double localError = target - java.lang.Math.signum(sum);
+
+            if (localError != 0.0){
+                errors++;
+                loss += localError*localError;
+                VectorOps.axpy(0.5*this.learningRate*localError, values, offset, weightVector, 0, weightVector.length - 1);
+            }
+        }
+        return new double[]{errors, loss};
+    }
+
+    /** Applies the on-line learning rule to one shard of sparse rows, updating the weight vector without locking and
+     * touching only the non-zero values of each row
+     *
+     * @param data the sparse dataset being trained on
+     * @param weightVector the weight vector to update
+     * @param start the first row of the shard
+     * @param end the row after the last row of the shard
+     * @return the number of misclassified rows and their squared error
+     */
+    private double[] trainShard(SparseInstances data, double[] weightVector, int start, int end){
+        double[] classValues = data.classValues();
+        int numWeights = weightVector.length - 1;
+        int errors = 0;
+        double loss = 0.0;
+
+        for (int i = start; i < end; i++){
+            double sum = data.dot(i, weightVector);
+            double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+            double localError = target - java.lang.Math.signum(sum);
+
+            if (localError != 0.0){
+                errors++;
+                loss += localError*localError;
+                data.axpy(0.5*this.learningRate*localError, i, weightVector, numWeights);
+            }
+        }
+        return new double[]{errors, loss};
+    }
+
+}
@@ -0,0 +1,202 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Class gathering metrics from the perceptron classifiers: the epochs, updates and throughput of training, the
+ *  latency of classifying single instances, and the time taken to build each member of an ensemble.
+ *  Metrics are opt in: a classifier only records them once given a PerceptronMetrics with setMetrics, and without
+ *  one the only cost on the hot paths is a null check. Counters are LongAdders and latencies go to a
+ *  LatencyHistogram, so one instance can be shared by classifiers training and predicting on many threads, as the
+ *  members of an ensemble do.
+ *  The metrics can be read directly, or exported over JMX with register, under the domain "perceptrons".
+ */
+public class PerceptronMetrics implements PerceptronMetricsMBean {
+
+    private final LongAdder trainingRuns = new LongAdder();
+    private final LongAdder epochs = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder rowsTrained = new LongAdder();
+    private final LongAdder trainingNanos = new LongAdder();
+    private final LatencyHistogram predictLatency = new LatencyHistogram();
+    private final LatencyHistogram memberTime = new LatencyHistogram();
+
+    private ObjectName registeredName;
+
+    /** Starts recording one build of a classifier. The returned listener is given to the training loops in place of
+     * the classifier's own epoch listener, which it passes every epoch on to.
+     *
+     * @param delegate the classifier's own epoch listener, or null
+     * @return the listener recording the build
+     */
+    public Training startTraining(EpochListener delegate){
+        return new Training(delegate);
+    }
+
+    /** Records one step of on-line training on a single instance
+     *
+     * @param applied true if the instance was misclassified and the weights were updated
+     * @param nanos the time taken by the step, in nanoseconds
+     */
+    public void recordUpdate(boolean applied, long nanos){
+        this.rowsTrained.increment();
+        this.trainingNanos.add(nanos);
+        if (applied){
+            this.updates.increment();
+        }
+    }
+
+    /** @param nanos the time taken to classify one instance, in nanoseconds */
+    public void recordPrediction(long nanos){
+        this.predictLatency.record(nanos);
+    }
+
+    /** @param nanos the time taken to build one ensemble member, in nanoseconds */
+    public void recordMember(long nanos){
+        this.memberTime.record(nanos);
+    }
+
+    /** @return the distribution of the time taken to classify one instance */
+    public LatencyHistogram predictLatency(){
+        return this.predictLatency;
+    }
+
+    /** @return the distribution of the time taken to build one ensemble member */
+    public LatencyHistogram memberTime(){
+        return this.memberTime;
+    }
+
+    @Override
+    public long getTrainingRuns(){
+        return this.trainingRuns.sum();
+    }
+
+    @Override
+    public long getEpochs(){
+        return this.epochs.sum();
+    }
+
+    @Override
+    public long getUpdates(){
+        return this.updates.sum();
+    }
+
+    @Override
+    public long getRowsTrained(){
+        return this.rowsTrained.sum();
+    }
+
+    @Override
+    public double getRowsPerSecond(){
+        long nanos = this.trainingNanos.sum();
+        return nanos == 0 ? 0.0 : this.rowsTrained.sum()*1e9/nanos;
+    }
+
+    @Override
+    public long getPredictions(){
+        return this.predictLatency.count();
+    }
+
+    @Override
+    public double getPredictLatencyP50Micros(){
+        return this.predictLatency.percentile(0.5)/1e3;
+    }
+
+    @Override
+    public double getPredictLatencyP99Micros(){
+        return this.predictLatency.percentile(0.99)/1e3;
+    }
+
+    @Override
+    public long getMemberBuilds(){
+        return this.memberTime.count();
+    }
+
+    @Override
+    public double getMemberTimeP50Millis(){
+        return this.memberTime.percentile(0.5)/1e6;
+    }
+
+    @Override
+    public double getMemberTimeP99Millis(){
+        return this.memberTime.percentile(0.99)/1e6;
+    }
+
+    @Override
+    public void reset(){
+        this.trainingRuns.reset();
+        this.epochs.reset();
+        this.updates.reset();
+        this.rowsTrained.reset();
+        this.trainingNanos.reset();
+        this.predictLatency.reset();
+        this.memberTime.reset();
+    }
+
+    /** Exports the metrics over JMX on the platform MBean server, replacing any earlier registration of this object
+     *
+     * @param name the name the metrics are registered under, e.g. the name of the model
+     * @return the object name the metrics were registered as
+     * @throws JMException if the name is invalid or already registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName("perceptrons:type=PerceptronMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.registeredName = objectName;
+        return objectName;
+    }
+
+    /** Removes the metrics from the platform MBean server, if they were registered
+     *
+     * @throws JMException if the registration cannot be removed
+     */
+    public synchronized void unregister() throws JMException {
+        if (this.registeredName == null){
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(this.registeredName)){
+            server.unregisterMBean(this.registeredName);
+        }
+        this.registeredName = null;
+    }
+
+    /** Class recording one build of a classifier, counting the epochs reported by its training loops
+     *  The epochs of concurrent full-data runs within one build, as under model selection, are all counted.
+     */
+    public final class Training implements EpochListener {
+
+        private final EpochListener delegate;
+        private final long startNanos;
+        private final LongAdder buildEpochs = new LongAdder();
+
+        private Training(EpochListener delegate){
+            this.delegate = delegate;
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void epochFinished(int epoch, int errors, double weightNorm, long epochNanos){
+            this.buildEpochs.increment();
+            updates.add(errors);
+            if (this.delegate != null){
+                this.delegate.epochFinished(epoch, errors, weightNorm, epochNanos);
+            }
+        }
+
+        /** Records the end of the build
+         *
+         * @param numRows the number of rows in the training data, each of which was trained on once per epoch
+         */
+        public void finish(long numRows){
+            long buildEpochs = this.buildEpochs.sum();
+            trainingRuns.increment();
+            epochs.add(buildEpochs);
+            rowsTrained.add(numRows*buildEpochs);
+            trainingNanos.add(System.nanoTime() - this.startNanos);
+        }
+    }
+
+}
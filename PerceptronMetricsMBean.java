@@ -0,0 +1,39 @@
+/** Interface of the values a PerceptronMetrics exposes over JMX, readable locally with e.g. jconsole */
+public interface PerceptronMetricsMBean {
+
+    /** @return the number of times a classifier has been built */
+    long getTrainingRuns();
+
+    /** @return the number of training epochs run over the full training data */
+    long getEpochs();
+
+    /** @return the number of misclassified rows seen while training, the rows the weights are updated from */
+    long getUpdates();
+
+    /** @return the number of rows trained on, counting each row once per epoch */
+    long getRowsTrained();
+
+    /** @return the rows trained on per second of training, over every build and on-line update */
+    double getRowsPerSecond();
+
+    /** @return the number of instances classified one at a time */
+    long getPredictions();
+
+    /** @return the median time taken to classify one instance, in microseconds */
+    double getPredictLatencyP50Micros();
+
+    /** @return the 99th percentile of the time taken to classify one instance, in microseconds */
+    double getPredictLatencyP99Micros();
+
+    /** @return the number of ensemble members built */
+    long getMemberBuilds();
+
+    /** @return the median time taken to build one ensemble member, in milliseconds */
+    double getMemberTimeP50Millis();
+
+    /** @return the 99th percentile of the time taken to build one ensemble member, in milliseconds */
+    double getMemberTimeP99Millis();
+
+    /** Clears every counter and histogram */
+    void reset();
+}
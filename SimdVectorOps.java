@@ -0,0 +1,100 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/** Class implementing the VectorOps routines with the JDK Vector API
+ *  It is only loaded by VectorOps when the jdk.incubator.vector module is present, so the rest of the
+ *  classifiers never depend on the incubator module directly.
+ *  Each loop processes a full vector of lanes at a time with fused multiply-adds, finishing the remainder with scalar code.
+ */
+final class SimdVectorOps implements VectorOps.Kernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length){
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()){
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++){
+            sum += a[aOffset + i]*b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length){
+        DoubleVector va = DoubleVector.broadcast(SPECIES, alpha);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()){
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset + i);
+            vx.fma(va, vy).intoArray(y, yOffset + i);
+        }
+
+        for (; i < length; i++){
+            y[yOffset + i] += alpha*x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void gemv(double[] rows, int rowsOffset, int numRows, int rowStride, double[] weights, int weightsOffset, int length,
+                     double[] out){
+        int upper = SPECIES.loopBound(length);
+        int row = 0;
+        for (; row + VectorOps.BLOCK_ROWS <= numRows; row += VectorOps.BLOCK_ROWS){
+            int o0 = rowsOffset + row*rowStride;
+            int o1 = o0 + rowStride;
+            int o2 = o1 + rowStride;
+            int o3 = o2 + rowStride;
+            DoubleVector a0 = DoubleVector.zero(SPECIES);
+            DoubleVector a1 = DoubleVector.zero(SPECIES);
+            DoubleVector a2 = DoubleVector.zero(SPECIES);
+            DoubleVector a3 = DoubleVector.zero(SPECIES);
+
+            int i = 0;
+            for (; i < upper; i += SPECIES.length()){
+                DoubleVector w = DoubleVector.fromArray(SPECIES, weights, weightsOffset + i);
+                a0 = DoubleVector.fromArray(SPECIES, rows, o0 + i).fma(w, a0);
+                a1 = DoubleVector.fromArray(SPECIES, rows, o1 + i).fma(w, a1);
+                a2 = DoubleVector.fromArray(SPECIES, rows, o2 + i).fma(w, a2);
+                a3 = DoubleVector.fromArray(SPECIES, rows, o3 + i).fma(w, a3);
+            }
+
+            double s0 = a0.reduceLanes(VectorOperators.ADD);
+            double s1 = a1.reduceLanes(VectorOperators.ADD);
+            double s2 = a2.reduceLanes(VectorOperators.ADD);
+            double s3 = a3.reduceLanes(VectorOperators.ADD);
+            for (; i < length; i++){
+                double w = weights[weightsOffset + i];
+                s0 += rows[o0 + i]*w;
+                s1 += rows[o1 + i]*w;
+                s2 += rows[o2 + i]*w;
+                s3 += rows[o3 + i]*w;
+            }
+
+            out[row] = s0;
+            out[row + 1] = s1;
+            out[row + 2] = s2;
+            out[row + 3] = s3;
+        }
+
+        for (; row < numRows; row++){
+            out[row] = dot(rows, rowsOffset + row*rowStride, weights, weightsOffset, length);
+        }
+    }
+
+    @Override
+    public String name(){
+        return "simd";
+    }
+
+}
@@ -0,0 +1,183 @@
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/** Class holding a compressed sparse row snapshot of a Weka dataset for the training loops
+ *  Only the non-zero values of each row are stored, with their attribute indices in ascending order, so the
+ *  training loops touch only the non-zero attributes of a row rather than every attribute of the dataset.
+ *  As in DenseInstances, each row holds every attribute of the original instance, including the class attribute,
+ *  and the class values are also kept in a separate label vector.
+ */
+public class SparseInstances {
+
+    private final int[] rowStarts;
+    private final int[] indices;
+    private final double[] values;
+    private final double[] classValues;
+    private final int numRows;
+    private final int numColumns;
+
+    /** Wraps existing compressed sparse row arrays without copying them
+     *
+     * @param rowStarts the position in indices and values of the first non-zero value of each row, of length numRows + 1
+     * @param indices the attribute index of each non-zero value, ascending within each row
+     * @param values the non-zero values
+     * @param classValues the class value of each row
+     * @param numRows the number of rows
+     * @param numColumns the number of attributes in each row
+     */
+    public SparseInstances(int[] rowStarts, int[] indices, double[] values, double[] classValues, int numRows, int numColumns){
+        if (rowStarts.length < numRows + 1 || classValues.length < numRows
+                || indices.length < rowStarts[numRows] || values.length < rowStarts[numRows]){
+            throw new IllegalArgumentException("Arrays are too small for " + numRows + " rows");
+        }
+        this.rowStarts = rowStarts;
+        this.indices = indices;
+        this.values = values;
+        this.classValues = classValues;
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+    }
+
+    /** Checks whether a dataset holds sparse instances, and so should be trained on through a sparse snapshot
+     *
+     * @param data the dataset to check
+     * @return true if any instance of the dataset is a SparseInstance
+     */
+    public static boolean isSparse(Instances data){
+        for (int i = 0; i < data.numInstances(); i++){
+            if (data.instance(i) instanceof SparseInstance){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Copies the non-zero values and class values of a dataset into compressed sparse row arrays.
+     * Only the stored values of each instance are read, so a sparse instance is copied in time proportional to its
+     * number of non-zero values.
+     *
+     * @param data the dataset to snapshot
+     * @return the sparse snapshot of the dataset
+     */
+    public static SparseInstances fromInstances(Instances data){
+        int numRows = data.numInstances();
+        int[] rowStarts = new int[numRows + 1];
+        for (int i = 0; i < numRows; i++){
+            Instance instance = data.instance(i);
+            int nonZero = 0;
+            for (int k = 0; k < instance.numValues(); k++){
+                if (instance.valueSparse(k) != 0.0){
+                    nonZero++;
+                }
+            }
+            rowStarts[i + 1] = rowStarts[i] + nonZero;
+        }
+
+        int[] indices = new int[rowStarts[numRows]];
+        double[] values = new double[rowStarts[numRows]];
+        double[] classValues = new double[numRows];
+        for (int i = 0; i < numRows; i++){
+            Instance instance = data.instance(i);
+            int position = rowStarts[i];
+            for (int k = 0; k < instance.numValues(); k++){
+                double value = instance.valueSparse(k);
+                if (value != 0.0){
+                    indices[position] = instance.index(k);
+                    values[position] = value;
+                    position++;
+                }
+            }
+            classValues[i] = instance.classValue();
+        }
+
+        return new SparseInstances(rowStarts, indices, values, classValues, numRows, data.numAttributes());
+    }
+
+    /** Calculates the dot product of the stored values of an instance with a weight vector, reading only the values
+     * the instance stores, which for a sparse instance are its non-zero values
+     *
+     * @param instance the instance to read
+     * @param weights the weight vector
+     * @param length the number of weights to use, values at higher attribute indices are skipped
+     * @return the dot product
+     */
+    public static double dot(Instance instance, double[] weights, int length){
+        double sum = 0.0;
+        for (int k = 0; k < instance.numValues(); k++){
+            int index = instance.index(k);
+            if (index < length){
+                sum += weights[index]*instance.valueSparse(k);
+            }
+        }
+        return sum;
+    }
+
+    /** Calculates the dot product of one row with a vector
+     *
+     * @param row the row index
+     * @param vector the vector, indexed by attribute
+     * @return the dot product
+     */
+    public double dot(int row, double[] vector){
+        double sum = 0.0;
+        for (int p = this.rowStarts[row]; p < this.rowStarts[row + 1]; p++){
+            sum += vector[this.indices[p]]*this.values[p];
+        }
+        return sum;
+    }
+
+    /** Adds a multiple of one row to a vector, touching only the non-zero values of the row
+     *
+     * @param alpha the multiple of the row to add
+     * @param row the row index
+     * @param vector the vector to update, indexed by attribute
+     * @param length the number of entries of the vector to update, values at higher attribute indices are skipped
+     */
+    public void axpy(double alpha, int row, double[] vector, int length){
+        for (int p = this.rowStarts[row]; p < this.rowStarts[row + 1]; p++){
+            int index = this.indices[p];
+            if (index < length){
+                vector[index] += alpha*this.values[p];
+            }
+        }
+    }
+
+    /** @param row the row index
+     *  @return the number of non-zero values stored for the row
+     */
+    public int numNonZero(int row){
+        return this.rowStarts[row + 1] - this.rowStarts[row];
+    }
+
+    /** @return the position of the first non-zero value of each row, with the total number of non-zero values last */
+    public int[] rowStarts(){
+        return this.rowStarts;
+    }
+
+    /** @return the attribute index of each non-zero value */
+    public int[] indices(){
+        return this.indices;
+    }
+
+    /** @return the non-zero values */
+    public double[] values(){
+        return this.values;
+    }
+
+    /** @return the class value of each row */
+    public double[] classValues(){
+        return this.classValues;
+    }
+
+    /** @return the number of rows */
+    public int numRows(){
+        return this.numRows;
+    }
+
+    /** @return the number of attributes in each row */
+    public int numColumns(){
+        return this.numColumns;
+    }
+
+}
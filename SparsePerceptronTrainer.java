@@ -0,0 +1,224 @@
+import java.util.Arrays;
+
+/** Class carrying out the on-line and off-line learning rules for a linear perceptron over a sparse snapshot of
+ *  the data, so each update costs time proportional to the number of non-zero values of a row, not the number of
+ *  attributes.
+ *  Standardisation subtracts a shift (mean/standardDeviation) from every attribute, which would make every row dense.
+ *  Instead the weight vector is held lazily as w = u - c*shift: an update of rate*(x - shift) adds rate*x to u,
+ *  touching only the non-zero values of x, and rate to the scale c. Keeping u.shift and shift.shift up to date
+ *  means the weighted sum of a standardised row is also found from its non-zero values alone.
+ *  The weight vector is only written out in full once training has finished.
+ */
+public class SparsePerceptronTrainer {
+
+    private double learningRate = 1.0;
+    private int maxIterations = 1000;
+    private int batchSize = 0;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private EpochListener epochListener;
+    private double[] shift;
+
+    private double[] u;
+    private double scale;
+    private double uDotShift;
+    private double shiftDotShift;
+    private boolean shiftNonZero;
+
+    /** @param learningRate the learning rate applied to the weight change */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /** @param maxIterations the maximum number of epochs to run */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /** @param batchSize the number of rows in each mini-batch of the off-line rule, or 0 to update once per epoch */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /** @param stoppingPolicy the policy deciding when training stops before the maximum number of iterations */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** @param epochListener the listener the metrics of each epoch are reported to, or null */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** @param shift the amount subtracted from each attribute value to standardise it, or null to train on the raw values */
+    public void setShift(double[] shift) {
+        this.shift = shift;
+    }
+
+    /** Runs the on-line learning rule, stopping after the maximum number of iterations, or earlier as decided by the
+     * stopping policy: by default after an epoch with no errors
+     *
+     * @param data the dataset to train on
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param weightVector the initial weight vector, one weight per column plus the bias, updated in place
+     * @return the final weight vector
+     */
+    public double[] trainOnline(SparseInstances data, int[] rows, double[] weightVector){
+        int numWeights = weightVector.length - 1;
+        int numRows = rows != null ? rows.length : data.numRows();
+        double[] classValues = data.classValues();
+        start(weightVector);
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int r = 0; r < numRows; r++){
+                int i = rows != null ? rows[r] : r;
+                double sum = weightedSum(data, i);
+                double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+                double localError = target - java.lang.Math.signum(sum);
+
+                double rate = 0.5*this.learningRate*localError;
+                if (rate != 0.0){
+                    errors++;
+                    loss += localError*localError;
+                }
+                if (rate != 0.0 && (data.numNonZero(i) > 0 || this.shiftNonZero)){
+                    data.axpy(rate, i, this.u, numWeights);
+                    if (this.shift != null){
+                        this.uDotShift += rate*data.dot(i, this.shift);
+                        this.scale += rate;
+                    }
+                }
+            }
+
+            if (run.epochFinished(errors, loss, currentWeights(weightVector))){
+                break;
+            }
+        }
+
+        return finish(weightVector);
+    }
+
+    /** Runs the off-line learning rule in mini-batches (the whole dataset by default), stopping after the maximum
+     * number of iterations, or earlier as decided by the stopping policy. The weight change of a mini-batch is gathered in a buffer and added once the
+     * mini-batch has been scored, so every row of a mini-batch is scored against the same weights.
+     *
+     * @param data the dataset to train on
+     * @param rows the indices of the rows to train on, in order, or null to train on every row
+     * @param weightVector the initial weight vector, one weight per column plus the bias, updated in place
+     * @return the final weight vector
+     */
+    public double[] trainOffline(SparseInstances data, int[] rows, double[] weightVector){
+        int numWeights = weightVector.length - 1;
+        int numRows = rows != null ? rows.length : data.numRows();
+        int batchRows = Math.max(1, this.batchSize > 0 ? Math.min(this.batchSize, numRows) : numRows);
+        double[] classValues = data.classValues();
+        double[] weightChange = new double[numWeights];
+        start(weightVector);
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            int errors = 0;
+            double loss = 0.0;
+
+            for (int start = 0; start < numRows; start += batchRows){
+                int end = Math.min(numRows, start + batchRows);
+                double scaleChange = 0.0;
+                Arrays.fill(weightChange, 0.0);
+
+                for (int p = start; p < end; p++){
+                    int i = rows != null ? rows[p] : p;
+                    double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+                    double localError = target - java.lang.Math.signum(weightedSum(data, i));
+                    if (localError != 0.0){
+                        errors++;
+                        loss += localError*localError;
+                        double rate = 0.5*this.learningRate*localError;
+                        data.axpy(rate, i, weightChange, numWeights);
+                        scaleChange += rate;
+                    }
+                }
+
+                VectorOps.axpy(1.0, weightChange, 0, this.u, 0, numWeights);
+                if (this.shift != null){
+                    this.uDotShift += VectorOps.dot(weightChange, 0, this.shift, 0, Math.min(numWeights, this.shift.length));
+                    this.scale += scaleChange;
+                }
+            }
+
+            if (run.epochFinished(errors, loss, currentWeights(weightVector))){
+                break;
+            }
+        }
+
+        return finish(weightVector);
+    }
+
+    /** Sets up the lazy form of the weight vector, u = w and a zero scale
+     *
+     * @param weightVector the initial weight vector
+     */
+    private void start(double[] weightVector){
+        this.u = weightVector;
+        this.scale = 0.0;
+        this.uDotShift = 0.0;
+        this.shiftDotShift = 0.0;
+        this.shiftNonZero = false;
+        if (this.shift != null){
+            int length = Math.min(weightVector.length - 1, this.shift.length);
+            this.uDotShift = VectorOps.dot(weightVector, 0, this.shift, 0, length);
+            this.shiftDotShift = VectorOps.dot(this.shift, 0, this.shift, 0, length);
+            for (int j = 0; j < length; j++){
+                if (this.shift[j] != 0.0){
+                    this.shiftNonZero = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Calculates the weighted sum of one standardised row from its non-zero values, using
+     * (u - c*shift).(x - shift) = u.x - c*shift.x - u.shift + c*shift.shift
+     *
+     * @param data the dataset being trained on
+     * @param row the row index
+     * @return the weighted sum
+     */
+    private double weightedSum(SparseInstances data, int row){
+        double sum = data.dot(row, this.u);
+        if (this.shift != null){
+            sum += -this.scale*data.dot(row, this.shift) - this.uDotShift + this.scale*this.shiftDotShift;
+        }
+        return sum;
+    }
+
+    /** Writes out a copy of the current weight vector for the epoch listener, only when one is set
+     *
+     * @param weightVector the weight vector u is held in
+     * @return the current weight vector, or u itself if there is no listener to read it
+     */
+    private double[] currentWeights(double[] weightVector){
+        if (this.epochListener == null || this.shift == null){
+            return weightVector;
+        }
+        double[] current = weightVector.clone();
+        VectorOps.axpy(-this.scale, this.shift, 0, current, 0, Math.min(current.length - 1, this.shift.length));
+        return current;
+    }
+
+    /** Writes the lazy weight vector out in full, w = u - c*shift
+     *
+     * @param weightVector the weight vector u is held in
+     * @return the final weight vector
+     */
+    private double[] finish(double[] weightVector){
+        if (this.shift != null && this.scale != 0.0){
+            VectorOps.axpy(-this.scale, this.shift, 0, weightVector, 0, Math.min(weightVector.length - 1, this.shift.length));
+        }
+        this.u = null;
+        return weightVector;
+    }
+
+}
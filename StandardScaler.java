@@ -0,0 +1,313 @@
+import weka.core.Instance;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** Class holding the mean and standard deviation of every attribute, used to standardise the attribute values
+ *  The statistics are kept as running means and sums of squared differences, updated row by row with Welford's
+ *  method, so they are found in a single row-major pass and can be extended one instance at a time.
+ *  Two sets of statistics over different rows can be merged, so a large dataset is fitted in parallel shards whose
+ *  partial statistics are merged in shard order, giving the same result whatever the number of threads.
+ *  Once fitted the scaler is a reusable transform: a standardised value is the raw value minus mean/standardDeviation
+ *  (zero for an attribute with no variance), and the transform is applied to a training snapshot or chunk as it is
+ *  read, never to the caller's dataset. The last column holds the class attribute and is never standardised.
+ */
+public class StandardScaler implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of rows in each shard when fitting in parallel */
+    static final int SHARD_ROWS = 4096;
+
+    private final double[] means;
+    private final double[] squares;
+    private long count;
+    private transient double[] shifts;
+
+    /** Creates an empty scaler
+     *
+     * @param numColumns the number of values in each row, including the class attribute
+     */
+    public StandardScaler(int numColumns){
+        this.means = new double[numColumns];
+        this.squares = new double[numColumns];
+    }
+
+    /** Restores a scaler from its statistics, as read back from a model file, see ModelFile
+     *
+     * @param means the running mean of each attribute
+     * @param squares the running sum of squared differences from the mean of each attribute
+     * @param count the number of rows the statistics cover
+     */
+    StandardScaler(double[] means, double[] squares, long count){
+        this.means = means;
+        this.squares = squares;
+        this.count = count;
+    }
+
+    /** Fits a scaler to every row of a dense snapshot, see fit(DenseInstances, ExecutorService)
+     *
+     * @param data the dataset to fit
+     * @return the fitted scaler
+     */
+    public static StandardScaler fit(DenseInstances data){
+        return fit(data, null);
+    }
+
+    /** Fits a scaler to every row of a dense snapshot in one row-major pass. Datasets larger than one shard are
+     * split into shards of SHARD_ROWS rows fitted concurrently, and the partial statistics merged in shard order.
+     *
+     * @param data the dataset to fit
+     * @param executor the executor the shards are fitted on, the common fork-join pool if null
+     * @return the fitted scaler
+     */
+    public static StandardScaler fit(DenseInstances data, ExecutorService executor){
+        int numShards = Math.max(1, (data.numRows() + SHARD_ROWS - 1)/SHARD_ROWS);
+        if (numShards == 1){
+            return fitRows(data, 0, data.numRows());
+        }
+
+        List<Callable<StandardScaler>> tasks = new ArrayList<>(numShards);
+        for (int s = 0; s < numShards; s++){
+            int start = s*SHARD_ROWS;
+            int end = Math.min(data.numRows(), start + SHARD_ROWS);
+            tasks.add(() -> fitRows(data, start, end));
+        }
+
+        ExecutorService pool = executor != null ? executor : ForkJoinPool.commonPool();
+        StandardScaler scaler = new StandardScaler(data.numColumns());
+        try {
+            for (Future<StandardScaler> future : pool.invokeAll(tasks)){
+                scaler.merge(future.get());
+            }
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Fitting the scaler was interrupted", e);
+        }
+        catch (ExecutionException e){
+            throw new IllegalStateException("Fitting the scaler failed", e.getCause());
+        }
+        return scaler;
+    }
+
+    /** Fits a scaler to a range of rows of a dense snapshot
+     *
+     * @param data the dataset to fit
+     * @param start the first row
+     * @param end the row after the last row
+     * @return the fitted scaler
+     */
+    private static StandardScaler fitRows(DenseInstances data, int start, int end){
+        StandardScaler scaler = new StandardScaler(data.numColumns());
+        for (int i = start; i < end; i++){
+            scaler.add(data.values(), data.offset(i));
+        }
+        return scaler;
+    }
+
+    /** Fits a scaler to a sparse snapshot. Each column is summed over its non-zero values only, with the rows where
+     * it is zero accounted for in one step, so the fit takes time proportional to the number of non-zero values plus
+     * the number of attributes.
+     *
+     * @param data the dataset to fit
+     * @return the fitted scaler
+     */
+    public static StandardScaler fit(SparseInstances data){
+        int numColumns = data.numColumns();
+        int numRows = data.numRows();
+        int[] indices = data.indices();
+        double[] values = data.values();
+        int numValues = data.rowStarts()[numRows];
+
+        StandardScaler scaler = new StandardScaler(numColumns);
+        scaler.count = numRows;
+        if (numRows == 0){
+            return scaler;
+        }
+
+        int[] nonZero = new int[numColumns];
+        for (int p = 0; p < numValues; p++){
+            if (indices[p] < numColumns - 1){
+                scaler.means[indices[p]] += values[p];
+                nonZero[indices[p]]++;
+            }
+        }
+        for (int attr = 0; attr < numColumns - 1; attr++){
+            scaler.means[attr] /= numRows;
+        }
+        for (int p = 0; p < numValues; p++){
+            if (indices[p] < numColumns - 1){
+                double deviation = values[p] - scaler.means[indices[p]];
+                scaler.squares[indices[p]] += deviation*deviation;
+            }
+        }
+        for (int attr = 0; attr < numColumns - 1; attr++){
+            scaler.squares[attr] += (numRows - nonZero[attr])*scaler.means[attr]*scaler.means[attr];
+        }
+        return scaler;
+    }
+
+    /** Adds one row to the statistics, skipping the class attribute in the last column
+     *
+     * @param values the array holding the row
+     * @param offset the index of the first value of the row
+     */
+    public void add(double[] values, int offset){
+        this.shifts = null;
+        this.count++;
+        for (int attr = 0; attr < this.means.length - 1; attr++){
+            double value = values[offset + attr];
+            double delta = value - this.means[attr];
+            this.means[attr] += delta/this.count;
+            this.squares[attr] += delta*(value - this.means[attr]);
+        }
+    }
+
+    /** Adds one instance to the statistics, skipping the class attribute in the last column
+     *
+     * @param instance the instance to add
+     */
+    public void add(Instance instance){
+        this.shifts = null;
+        this.count++;
+        for (int attr = 0; attr < this.means.length - 1; attr++){
+            double value = instance.value(attr);
+            double delta = value - this.means[attr];
+            this.means[attr] += delta/this.count;
+            this.squares[attr] += delta*(value - this.means[attr]);
+        }
+    }
+
+    /** Merges the statistics of another scaler, fitted over different rows, into this one
+     *
+     * @param other the scaler to merge in
+     */
+    public void merge(StandardScaler other){
+        if (other.count == 0){
+            return;
+        }
+        this.shifts = null;
+        long total = this.count + other.count;
+        for (int attr = 0; attr < this.means.length - 1; attr++){
+            double delta = other.means[attr] - this.means[attr];
+            this.means[attr] += delta*other.count/total;
+            this.squares[attr] += other.squares[attr] + delta*delta*this.count*other.count/total;
+        }
+        this.count = total;
+    }
+
+    /** Selects the statistics of some of the columns, for a model trained on those columns alone
+     *
+     * @param columns the indices of the columns to keep, in order, ending with the class attribute
+     * @return a scaler over the selected columns
+     */
+    public StandardScaler select(int[] columns){
+        double[] means = new double[columns.length];
+        double[] squares = new double[columns.length];
+        for (int c = 0; c < columns.length; c++){
+            means[c] = this.means[columns[c]];
+            squares[c] = this.squares[columns[c]];
+        }
+        return new StandardScaler(means, squares, this.count);
+    }
+
+    /** @return the number of rows the statistics cover */
+    public long count(){
+        return this.count;
+    }
+
+    /** @return the number of values in each row, including the class attribute */
+    public int numColumns(){
+        return this.means.length;
+    }
+
+    /** @return the running mean of each attribute, not copied */
+    double[] means(){
+        return this.means;
+    }
+
+    /** @return the running sum of squared differences from the mean of each attribute, not copied */
+    double[] squares(){
+        return this.squares;
+    }
+
+    /** @param attr the index of the attribute
+     *  @return the mean of the attribute
+     */
+    public double mean(int attr){
+        return this.means[attr];
+    }
+
+    /** @param attr the index of the attribute
+     *  @return the standard deviation of the attribute
+     */
+    public double standardDeviation(int attr){
+        return this.count == 0 ? 0.0 : Math.sqrt(this.squares[attr]/this.count);
+    }
+
+    /** Calculates the amount subtracted from an attribute value when standardising it, mean/standardDeviation,
+     * or zero for an attribute with no variance and for the class attribute
+     *
+     * @param attr the index of the attribute
+     * @return the amount to subtract from the attribute value
+     */
+    public double shift(int attr){
+        double standardDeviation = attr < this.means.length - 1 ? standardDeviation(attr) : 0.0;
+        if (standardDeviation == 0.0){
+            return 0.0;
+        }
+        return this.means[attr]/standardDeviation;
+    }
+
+    /** @return the amount subtracted from each attribute value when standardising it, see shift(int) */
+    public double[] shifts(){
+        return cachedShifts().clone();
+    }
+
+    /** @return the shift of each attribute, calculated once after the statistics last changed */
+    private double[] cachedShifts(){
+        if (this.shifts == null){
+            double[] shifts = new double[this.means.length];
+            for (int attr = 0; attr < shifts.length - 1; attr++){
+                shifts[attr] = shift(attr);
+            }
+            this.shifts = shifts;
+        }
+        return this.shifts;
+    }
+
+    /** Standardises one row in place
+     *
+     * @param values the array holding the row
+     * @param offset the index of the first value of the row
+     */
+    public void transform(double[] values, int offset){
+        double[] shifts = cachedShifts();
+        for (int attr = 0; attr < shifts.length - 1; attr++){
+            values[offset + attr] -= shifts[attr];
+        }
+    }
+
+    /** Standardises every row of a snapshot in place. The snapshot is a copy of the training data made for the
+     * training loops, so the caller's dataset is left untouched.
+     *
+     * @param data the snapshot to standardise
+     */
+    public void transform(DenseInstances data){
+        double[] shifts = cachedShifts();
+        double[] values = data.values();
+        for (int i = 0; i < data.numRows(); i++){
+            int offset = data.offset(i);
+            for (int attr = 0; attr < shifts.length - 1; attr++){
+                values[offset + attr] -= shifts[attr];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+import java.io.Serializable;
+
+/** Class deciding when training should stop early, shared by the training loops of every learning rule
+ *  Training stops after an epoch with no misclassified rows, once the loss (the sum of squared errors) has not
+ *  improved for a number of epochs in a row, once a wall-clock budget has been used up, or after a fixed number of
+ *  epochs, whichever comes first.
+ *  Each check can be turned off; the maximum number of iterations of the trainer always applies as well.
+ *  A policy only holds settings, so it can be shared between concurrent training runs, each of which tracks its
+ *  own progress in a Run.
+ */
+public class StoppingPolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean stopOnZeroErrors = true;
+    private int plateauEpochs = 0;
+    private long timeBudgetMillis = 0;
+    private int maxEpochs = 0;
+
+    /** @param stopOnZeroErrors true to stop after an epoch with no misclassified rows */
+    public void setStopOnZeroErrors(boolean stopOnZeroErrors) {
+        this.stopOnZeroErrors = stopOnZeroErrors;
+    }
+
+    /** @param plateauEpochs the number of epochs without the loss improving after which training stops, or 0 to disable */
+    public void setPlateauEpochs(int plateauEpochs) {
+        this.plateauEpochs = plateauEpochs;
+    }
+
+    /** @param timeBudgetMillis the wall-clock time after which training stops, in milliseconds, or 0 to disable */
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /** @param maxEpochs the number of epochs after which training stops, or 0 to leave it to the trainer's maximum number of iterations */
+    public void setMaxEpochs(int maxEpochs) {
+        this.maxEpochs = maxEpochs;
+    }
+
+    /** Starts tracking a training run, from now
+     *
+     * @param listener the listener to report each epoch to, or null
+     * @return the progress of the run
+     */
+    public Run start(EpochListener listener){
+        return new Run(listener);
+    }
+
+    /** Class tracking the progress of one training run against the policy */
+    public final class Run {
+
+        private final EpochListener listener;
+        private final long startNanos;
+        private long epochStartNanos;
+        private int epoch;
+        private double bestLoss = Double.POSITIVE_INFINITY;
+        private int epochsWithoutImprovement;
+
+        private Run(EpochListener listener){
+            this.listener = listener;
+            this.startNanos = System.nanoTime();
+            this.epochStartNanos = this.startNanos;
+        }
+
+        /** Records the end of an epoch, reports it to the listener, and decides whether training should stop
+         *
+         * @param errors the number of rows misclassified during the epoch
+         * @param loss the sum of squared errors of the epoch
+         * @param weightVector the weight vector at the end of the epoch, only read if there is a listener
+         * @return true if training should stop
+         */
+        public boolean epochFinished(int errors, double loss, double[] weightVector){
+            long now = System.nanoTime();
+            this.epoch++;
+            if (this.listener != null){
+                double norm = Math.sqrt(VectorOps.dot(weightVector, 0, weightVector, 0, weightVector.length));
+                this.listener.epochFinished(this.epoch, errors, norm, now - this.epochStartNanos);
+            }
+            this.epochStartNanos = now;
+
+            if (stopOnZeroErrors && errors == 0){
+                return true;
+            }
+            if (maxEpochs > 0 && this.epoch >= maxEpochs){
+                return true;
+            }
+            if (plateauEpochs > 0){
+                if (loss < this.bestLoss){
+                    this.bestLoss = loss;
+                    this.epochsWithoutImprovement = 0;
+                }
+                else if (++this.epochsWithoutImprovement >= plateauEpochs){
+                    return true;
+                }
+            }
+            return timeBudgetMillis > 0 && now - this.startNanos >= timeBudgetMillis*1_000_000L;
+        }
+
+        /** @return the number of epochs finished so far */
+        public int epochs(){
+            return this.epoch;
+        }
+    }
+
+}
@@ -0,0 +1,391 @@
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.AbstractFileLoader;
+import weka.core.converters.ConverterUtils;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/** Class training a linear perceptron from a data source that is streamed rather than loaded into memory
+ *  Rows are read from the file (an ARFF or CSV file, read incrementally by Weka's loaders) in chunks of a fixed
+ *  number of rows, so memory use is bounded by the chunk size whatever the size of the dataset.
+ *  A first pass fits a StandardScaler, computing the mean and standard deviation of every attribute in one go.
+ *  Each epoch of the on-line learning rule then reopens the file with a new loader and streams it again,
+ *  standardising every chunk as it is read. A loader cannot be rewound once it has been read, so every pass over
+ *  the file opens, and closes, its own.
+ *  The same training can be run over a MappedDataset, in which case each pass reads from the memory mapped file.
+ *  Training stops when the maximum number of iterations has been met, or earlier as decided by the StoppingPolicy:
+ *  by default after an epoch with no errors, which makes no changes to the weights.
+ *  Training can be warm started from an earlier model, continuing from its weights with the statistics of the new
+ *  data merged into its scaler.
+ */
+public class StreamingPerceptronTrainer {
+
+    private int chunkSize = 10000;
+    private int maxIterations = 1000;
+    private double learningRate = 1.0;
+    private boolean biasTerm = false;
+    private boolean standardise = true;
+    private int seed = 1;
+
+    private Instances structure;
+    private StandardScaler scaler;
+    private long numRows;
+    private StoppingPolicy stoppingPolicy = new StoppingPolicy();
+    private EpochListener epochListener;
+    private double[] warmWeights;
+    private StandardScaler warmScaler;
+
+    /** @param chunkSize the number of rows held in memory at once */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** @param maxIterations the maximum number of epochs to run */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /** @param biasTerm true to initialise the bias term randomly */
+    public void setBiasTerm(boolean biasTerm) {
+        this.biasTerm = biasTerm;
+    }
+
+    /** @param standardise true to standardise the attributes while streaming */
+    public void setStandardise(boolean standardise) {
+        this.standardise = standardise;
+    }
+
+    /** @param seed the seed used to generate the initial weight vector */
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
+    /** @param stoppingPolicy the policy deciding when training stops before the maximum number of iterations */
+    public void setStoppingPolicy(StoppingPolicy stoppingPolicy) {
+        this.stoppingPolicy = stoppingPolicy;
+    }
+
+    /** @param epochListener the listener the metrics of each epoch are reported to, or null */
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    /** Sets an earlier model to continue training from. Its weights are used as the initial weight vector and its
+     * scaler merged with the statistics of the streamed data, each only if it matches the number of columns streamed.
+     *
+     * @param weightVector the weight vector of the earlier model, only copied, or null to start from random weights
+     * @param scaler the scaler of the earlier model, only read, or null to fit the streamed data alone
+     */
+    public void setWarmStart(double[] weightVector, StandardScaler scaler) {
+        this.warmWeights = weightVector;
+        this.warmScaler = scaler;
+    }
+
+    /** @return the header of the streamed data, holding no instances */
+    public Instances getStructure() {
+        return this.structure;
+    }
+
+    /** @return the number of rows read in each pass over the data */
+    public long getNumRows() {
+        return this.numRows;
+    }
+
+    /** @return the scaler the data was standardised with, or null if the data was not standardised */
+    public StandardScaler getScaler() {
+        return this.scaler;
+    }
+
+    /** Reads the header of an ARFF or CSV file without reading any of its rows
+     * If the class index of the file is not set, the last attribute is used as the class.
+     *
+     * @param file the file to read
+     * @return the header of the file, holding no instances
+     * @throws IOException if the file cannot be read
+     */
+    public static Instances readStructure(File file) throws IOException {
+        try (InputStream in = open(file)){
+            return structure(loader(file, in));
+        }
+    }
+
+    /** Streams an ARFF or CSV file to train a linear model
+     * If the class index of the file is not set, the last attribute is used as the class.
+     *
+     * @param file the file to stream, which is reopened for every pass
+     * @return the linear model/final weight vector
+     * @throws IOException if the file cannot be read
+     */
+    public double[] train(File file) throws IOException {
+        this.structure = readStructure(file);
+        int numColumns = this.structure.numAttributes();
+
+        this.scaler = this.standardise ? warmStartScaler(computeStatistics(file, numColumns)) : null;
+
+        double[] weightVector = initialWeights(numColumns);
+        double[] values = new double[this.chunkSize*numColumns];
+        double[] classValues = new double[this.chunkSize];
+        double[] epochTotals = new double[2];
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        this.numRows = 0;
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            epochTotals[0] = 0.0;
+            epochTotals[1] = 0.0;
+
+            long epochRows = 0;
+            try (InputStream in = open(file)){
+                AbstractFileLoader loader = loader(file, in);
+                Instances header = structure(loader);
+                int numRows;
+                while ((numRows = readChunk(loader, header, values, classValues, numColumns)) > 0){
+                    standardiseChunk(values, numRows, numColumns);
+                    DenseInstances chunk = new DenseInstances(values, classValues, numRows, numColumns);
+                    trainChunk(chunk, weightVector, epochTotals);
+                    epochRows += numRows;
+                }
+            }
+            this.numRows = epochRows;
+
+            if (run.epochFinished((int) epochTotals[0], epochTotals[1], weightVector)){
+                break;
+            }
+        }
+
+        return weightVector;
+    }
+
+    /** Trains a linear model from a memory mapped binary dataset, copying one chunk of rows at a time out of the
+     * mapping. Every pass reads straight from the page cache, so no parsing is repeated between epochs.
+     * The structure is not available for a binary dataset and is left null.
+     *
+     * @param dataset the mapped dataset to train on
+     * @return the linear model/final weight vector
+     */
+    public double[] train(MappedDataset dataset){
+        this.structure = null;
+        this.numRows = dataset.numRows();
+        int numColumns = dataset.numColumns();
+        double[] values = new double[this.chunkSize*numColumns];
+        double[] classValues = new double[this.chunkSize];
+
+        this.scaler = null;
+        if (this.standardise){
+            StandardScaler statistics = new StandardScaler(numColumns);
+            for (long start = 0; start < dataset.numRows(); start += this.chunkSize){
+                int numRows = (int) Math.min(this.chunkSize, dataset.numRows() - start);
+                dataset.copyRows(start, numRows, values, classValues);
+                for (int i = 0; i < numRows; i++){
+                    statistics.add(values, i*numColumns);
+                }
+            }
+            this.scaler = warmStartScaler(statistics);
+        }
+
+        double[] weightVector = initialWeights(numColumns);
+        double[] epochTotals = new double[2];
+        StoppingPolicy.Run run = this.stoppingPolicy.start(this.epochListener);
+
+        for (int iteration = 0; iteration < this.maxIterations; iteration++){
+            epochTotals[0] = 0.0;
+            epochTotals[1] = 0.0;
+
+            for (long start = 0; start < dataset.numRows(); start += this.chunkSize){
+                int numRows = (int) Math.min(this.chunkSize, dataset.numRows() - start);
+                dataset.copyRows(start, numRows, values, classValues);
+                standardiseChunk(values, numRows, numColumns);
+                DenseInstances chunk = new DenseInstances(values, classValues, numRows, numColumns);
+                trainChunk(chunk, weightVector, epochTotals);
+            }
+
+            if (run.epochFinished((int) epochTotals[0], epochTotals[1], weightVector)){
+                break;
+            }
+        }
+
+        return weightVector;
+    }
+
+    /** Generates the initial weight vector from the seed, with the possible inclusion of a bias term, or copies the
+     * warm start weights if they match the number of columns
+     *
+     * @param numColumns the number of values in each row
+     * @return the initial weight vector
+     */
+    private double[] initialWeights(int numColumns){
+        if (this.warmWeights != null && this.warmWeights.length == numColumns + 1){
+            return this.warmWeights.clone();
+        }
+        double[] weightVector = new double[numColumns + 1];
+        Random rnd = new Random(this.seed);
+        for (int i = 0; i < numColumns; i++){
+            weightVector[i] = rnd.nextDouble();
+        }
+        if (this.biasTerm){
+            weightVector[weightVector.length - 1] = rnd.nextDouble();
+        }
+        return weightVector;
+    }
+
+    /** Merges the statistics of the streamed data with those of the warm start scaler, if it covers the same columns
+     *
+     * @param fitted the scaler fitted to the streamed data
+     * @return the scaler to standardise the streamed data with
+     */
+    private StandardScaler warmStartScaler(StandardScaler fitted){
+        if (this.warmScaler == null || this.warmScaler.numColumns() != fitted.numColumns()){
+            return fitted;
+        }
+        StandardScaler merged = new StandardScaler(fitted.numColumns());
+        merged.merge(this.warmScaler);
+        merged.merge(fitted);
+        return merged;
+    }
+
+    /** Standardises each non-class attribute of the rows in a chunk buffer, if standardisation is enabled
+     *
+     * @param values the row-major attribute values of the chunk
+     * @param numRows the number of rows in the chunk
+     * @param numColumns the number of values in each row
+     */
+    private void standardiseChunk(double[] values, int numRows, int numColumns){
+        if (this.scaler == null){
+            return;
+        }
+        for (int i = 0; i < numRows; i++){
+            this.scaler.transform(values, i*numColumns);
+        }
+    }
+
+    /** Opens a file for one pass, decompressing it if it is gzipped
+     *
+     * @param file the file to open
+     * @return the stream reading the file from its start, to be closed by the caller
+     * @throws IOException if the file cannot be opened
+     */
+    private static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        if (!file.getName().endsWith(AbstractFileLoader.FILE_EXTENSION_COMPRESSED)){
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in);
+        }
+        catch (IOException e){
+            in.close();
+            throw e;
+        }
+    }
+
+    /** Creates a new loader for the type of a file, reading from a stream newly opened on it
+     *
+     * @param file the ARFF or CSV file the stream reads, used to choose the loader
+     * @param in the stream reading the file from its start
+     * @return the loader reading the stream
+     * @throws IOException if no loader reads files of this type
+     */
+    private static AbstractFileLoader loader(File file, InputStream in) throws IOException {
+        AbstractFileLoader loader = ConverterUtils.getLoaderForFile(file);
+        if (loader == null){
+            throw new IOException("No loader reads the file " + file);
+        }
+        loader.setSource(in);
+        return loader;
+    }
+
+    /** Reads the header from a newly opened loader, setting the class to the last attribute if none is set
+     *
+     * @param loader the loader to read the header from
+     * @return the header, which must be passed back to the loader to read each row
+     * @throws IOException if the header cannot be read
+     */
+    private static Instances structure(AbstractFileLoader loader) throws IOException {
+        Instances structure = loader.getStructure();
+        if (structure.classIndex() < 0){
+            structure.setClassIndex(structure.numAttributes() - 1);
+        }
+        return structure;
+    }
+
+    /** Streams the file once to calculate the mean and standard deviation of each non-class attribute
+     *
+     * @param file the file to stream
+     * @param numColumns the number of attributes
+     * @return the fitted scaler
+     * @throws IOException if the file cannot be read
+     */
+    private StandardScaler computeStatistics(File file, int numColumns) throws IOException {
+        StandardScaler statistics = new StandardScaler(numColumns);
+        double[] row = new double[numColumns];
+
+        try (InputStream in = open(file)){
+            AbstractFileLoader loader = loader(file, in);
+            Instances header = structure(loader);
+            Instance instance;
+            while ((instance = loader.getNextInstance(header)) != null){
+                for (int attr = 0; attr < numColumns; attr++){
+                    row[attr] = instance.value(attr);
+                }
+                statistics.add(row, 0);
+            }
+        }
+        return statistics;
+    }
+
+    /** Reads up to chunkSize rows from the loader into the chunk buffers
+     *
+     * @param loader the loader streaming the file
+     * @param header the header read from the loader
+     * @param values the buffer for the attribute values
+     * @param classValues the buffer for the class values
+     * @param numColumns the number of attributes
+     * @return the number of rows read, 0 once the file is exhausted
+     * @throws IOException if the file cannot be read
+     */
+    private int readChunk(AbstractFileLoader loader, Instances header, double[] values, double[] classValues,
+                          int numColumns) throws IOException {
+        int numRows = 0;
+        Instance instance;
+        while (numRows < this.chunkSize && (instance = loader.getNextInstance(header)) != null){
+            int offset = numRows*numColumns;
+            for (int attr = 0; attr < numColumns; attr++){
+                values[offset + attr] = instance.value(attr);
+            }
+            classValues[numRows] = instance.classValue();
+            numRows++;
+        }
+        return numRows;
+    }
+
+    /** Applies the on-line learning rule to every row of a chunk
+     *
+     * @param chunk the rows read from the source
+     * @param weightVector the weight vector to update
+     * @param epochTotals the number of misclassified rows and their squared error so far in the epoch, added to
+     */
+    private void trainChunk(DenseInstances chunk, double[] weightVector, double[] epochTotals){
+        double[] values = chunk.values();
+        double[] classValues = chunk.classValues();
+        int numColumns = chunk.numColumns();
+
+        for (int i = 0; i < chunk.numRows(); i++){
+            int offset = chunk.offset(i);
+            double sum = VectorOps.dot(weightVector, 0, values, offset, numColumns);
+            double target = classValues[i] != 0.0 ? 1.0 : -1.0;
+            double localError = target - java.lang.Math.signum(sum);
+
+            double rate = 0.5*this.learningRate*localError;
+            if (rate != 0.0){
+                epochTotals[0]++;
+                epochTotals[1] += localError*localError;
+                VectorOps.axpy(rate, values, offset, weightVector, 0, weightVector.length - 1);
+            }
+        }
+    }
+
+}
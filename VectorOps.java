@@ -0,0 +1,219 @@
+/** Class providing static primitive vector and matrix routines shared by the perceptrons
+ *  The routines are carried out by one of two engines: a SIMD engine backed by the JDK Vector API, used when the
+ *  jdk.incubator.vector module is available (run with --add-modules jdk.incubator.vector), or a scalar engine whose
+ *  loops are written over flat arrays with simple counted bounds so the JIT can unroll them.
+ *  The engine can be forced with the system property perceptrons.vector set to "simd" or "scalar".
+ */
+public final class VectorOps {
+
+    /** The number of rows scored together by gemv, each sharing the loads of the weight vector */
+    static final int BLOCK_ROWS = 4;
+
+    /** The number of rows in each tile of gemm */
+    static final int TILE_ROWS = 64;
+
+    /** The number of weights in each tile of gemm, small enough for a tile to stay in the L1 cache */
+    static final int TILE_WEIGHTS = 4096;
+
+    private static final Kernels KERNELS = selectKernels();
+
+    private VectorOps(){
+    }
+
+    /** The routines an engine must provide */
+    interface Kernels {
+
+        double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+        void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+        void gemv(double[] rows, int rowsOffset, int numRows, int rowStride, double[] weights, int weightsOffset, int length,
+                  double[] out);
+
+        String name();
+    }
+
+    /** Chooses the SIMD engine if the Vector API module is present and has not been disabled, otherwise the scalar engine
+     *
+     * @return the engine to use
+     */
+    private static Kernels selectKernels(){
+        String requested = System.getProperty("perceptrons.vector", "auto");
+        if (!requested.equals("scalar") && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()){
+            try {
+                Kernels simd = (Kernels) Class.forName("SimdVectorOps").getDeclaredConstructor().newInstance();
+                simd.dot(new double[1], 0, new double[1], 0, 1);
+                return simd;
+            }
+            catch (ReflectiveOperationException | LinkageError e){
+                // the Vector API could not be loaded, so fall back to the scalar loops
+            }
+        }
+        return new ScalarKernels();
+    }
+
+    /** @return the name of the engine in use, either "simd" or "scalar" */
+    public static String engine(){
+        return KERNELS.name();
+    }
+
+    /** Calculates the dot product of two vectors stored in flat arrays
+     *
+     * @param a the first array
+     * @param aOffset the index of the first value of the first vector
+     * @param b the second array
+     * @param bOffset the index of the first value of the second vector
+     * @param length the number of values in each vector
+     * @return the dot product
+     */
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length){
+        return KERNELS.dot(a, aOffset, b, bOffset, length);
+    }
+
+    /** Adds a multiple of one vector onto another, y = alpha*x + y
+     *
+     * @param alpha the multiple of x to add
+     * @param x the array holding the vector to add
+     * @param xOffset the index of the first value of x
+     * @param y the array holding the vector to update
+     * @param yOffset the index of the first value of y
+     * @param length the number of values in each vector
+     */
+    public static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length){
+        KERNELS.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    /** Multiplies a row-major matrix by a vector, writing one dot product per row into the output array.
+     * Rows are processed in blocks of BLOCK_ROWS so each weight value is loaded once per block rather than once per row.
+     *
+     * @param rows the row-major matrix values
+     * @param numRows the number of rows to score
+     * @param rowStride the number of values stored for each row, at least the length of the weight vector
+     * @param weights the weight vector
+     * @param length the number of weights to apply to each row
+     * @param out the array to write the dot products into, of at least numRows values
+     */
+    public static void gemv(double[] rows, int numRows, int rowStride, double[] weights, int length, double[] out){
+        KERNELS.gemv(rows, 0, numRows, rowStride, weights, 0, length, out);
+    }
+
+    /** Multiplies a row-major matrix by a vector stored part way through an array
+     *
+     * @param rows the row-major matrix values
+     * @param numRows the number of rows to score
+     * @param rowStride the number of values stored for each row, at least the length of the weight vector
+     * @param weights the array holding the weight vector
+     * @param weightsOffset the index of the first weight
+     * @param length the number of weights to apply to each row
+     * @param out the array to write the dot products into, of at least numRows values
+     */
+    public static void gemv(double[] rows, int numRows, int rowStride, double[] weights, int weightsOffset, int length, double[] out){
+        KERNELS.gemv(rows, 0, numRows, rowStride, weights, weightsOffset, length, out);
+    }
+
+    /** Multiplies a row-major matrix stored part way through an array by a vector stored part way through an array,
+     * so a block of rows can be scored in place inside a larger snapshot
+     *
+     * @param rows the array holding the row-major matrix values
+     * @param rowsOffset the index of the first value of the first row
+     * @param numRows the number of rows to score
+     * @param rowStride the number of values stored for each row, at least the length of the weight vector
+     * @param weights the array holding the weight vector
+     * @param weightsOffset the index of the first weight
+     * @param length the number of weights to apply to each row
+     * @param out the array to write the dot products into, of at least numRows values
+     */
+    public static void gemv(double[] rows, int rowsOffset, int numRows, int rowStride, double[] weights, int weightsOffset,
+                            int length, double[] out){
+        KERNELS.gemv(rows, rowsOffset, numRows, rowStride, weights, weightsOffset, length, out);
+    }
+
+    /** Multiplies a row-major matrix by the transpose of a row-major weight matrix, writing the dot product of every
+     * row with every weight vector into the output array, out[r*numVectors + m] for row r and weight vector m.
+     * The product is blocked into tiles of TILE_ROWS rows by as many weight vectors as fit in TILE_WEIGHTS weights,
+     * so each tile of weights is read from memory once per tile of rows and then reused from cache for every row
+     * of the tile, rather than read again for every row.
+     *
+     * @param rows the array holding the row-major matrix values
+     * @param rowsOffset the index of the first value of the first row
+     * @param numRows the number of rows to score
+     * @param rowStride the number of values stored for each row, at least length
+     * @param weights the row-major weight vectors
+     * @param numVectors the number of weight vectors
+     * @param weightStride the number of values stored for each weight vector, at least length
+     * @param length the number of weights to apply to each row
+     * @param out the array to write the dot products into, of at least numRows*numVectors values
+     */
+    public static void gemm(double[] rows, int rowsOffset, int numRows, int rowStride, double[] weights, int numVectors,
+                            int weightStride, int length, double[] out){
+        int tileVectors = Math.max(1, TILE_WEIGHTS/Math.max(1, length));
+        for (int firstRow = 0; firstRow < numRows; firstRow += TILE_ROWS){
+            int endRow = Math.min(numRows, firstRow + TILE_ROWS);
+            for (int firstVector = 0; firstVector < numVectors; firstVector += tileVectors){
+                int endVector = Math.min(numVectors, firstVector + tileVectors);
+                for (int r = firstRow; r < endRow; r++){
+                    int rowOffset = rowsOffset + r*rowStride;
+                    for (int m = firstVector; m < endVector; m++){
+                        out[r*numVectors + m] = KERNELS.dot(weights, m*weightStride, rows, rowOffset, length);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Engine using plain scalar loops */
+    static final class ScalarKernels implements Kernels {
+
+        @Override
+        public double dot(double[] a, int aOffset, double[] b, int bOffset, int length){
+            double sum = 0.0;
+            for (int i = 0; i < length; i++){
+                sum += a[aOffset + i]*b[bOffset + i];
+            }
+            return sum;
+        }
+
+        @Override
+        public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length){
+            for (int i = 0; i < length; i++){
+                y[yOffset + i] += alpha*x[xOffset + i];
+            }
+        }
+
+        @Override
+        public void gemv(double[] rows, int rowsOffset, int numRows, int rowStride, double[] weights, int weightsOffset, int length,
+                         double[] out){
+            int row = 0;
+            for (; row + BLOCK_ROWS <= numRows; row += BLOCK_ROWS){
+                int o0 = rowsOffset + row*rowStride;
+                int o1 = o0 + rowStride;
+                int o2 = o1 + rowStride;
+                int o3 = o2 + rowStride;
+                double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+
+                for (int i = 0; i < length; i++){
+                    double w = weights[weightsOffset + i];
+                    s0 += rows[o0 + i]*w;
+                    s1 += rows[o1 + i]*w;
+                    s2 += rows[o2 + i]*w;
+                    s3 += rows[o3 + i]*w;
+                }
+
+                out[row] = s0;
+                out[row + 1] = s1;
+                out[row + 2] = s2;
+                out[row + 3] = s3;
+            }
+
+            for (; row < numRows; row++){
+                out[row] = dot(rows, rowsOffset + row*rowStride, weights, weightsOffset, length);
+            }
+        }
+
+        @Override
+        public String name(){
+            return "scalar";
+        }
+    }
+
+}
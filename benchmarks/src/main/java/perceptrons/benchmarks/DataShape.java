@@ -0,0 +1,36 @@
+package perceptrons.benchmarks;
+
+/** The shapes of synthetic dataset the benchmarks are run over
+ *  Narrow and wide dense data stress the per-row overhead and the vectorised kernels respectively, while wide
+ *  sparse data, held as SparseInstance objects, exercises the paths that touch only the non-zero values of a row.
+ */
+public enum DataShape {
+
+    NARROW_DENSE(16, 0),
+    WIDE_DENSE(1000, 0),
+    WIDE_SPARSE(10000, 32);
+
+    private final int numAttributes;
+    private final int numNonZero;
+
+    DataShape(int numAttributes, int numNonZero){
+        this.numAttributes = numAttributes;
+        this.numNonZero = numNonZero;
+    }
+
+    /** @return the number of attributes, not counting the class attribute */
+    public int numAttributes(){
+        return this.numAttributes;
+    }
+
+    /** @return the number of non-zero attribute values in each row, or 0 for dense data */
+    public int numNonZero(){
+        return this.numNonZero;
+    }
+
+    /** @return true if the rows are generated as sparse instances */
+    public boolean isSparse(){
+        return this.numNonZero > 0;
+    }
+
+}
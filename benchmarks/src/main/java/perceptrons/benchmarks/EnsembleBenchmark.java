@@ -0,0 +1,93 @@
+package perceptrons.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Instance;
+import weka.core.Instances;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks of LinearPerceptronEnsemble voting, through the perceptron objects or a compiled weight matrix
+ *  The cost of voting does not depend on how many rows the ensemble was trained on, so the ensemble is trained on
+ *  at most TRAINING_ROWS rows to keep the setup short, and then scores every row of the dataset.
+ */
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsPrepend = {"--add-modules", "jdk.incubator.vector", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class EnsembleBenchmark {
+
+    /** The maximum number of rows the ensemble is trained on */
+    static final int TRAINING_ROWS = 1000;
+
+    private static final MethodHandle BUILD =
+            Perceptrons.method("LinearPerceptronEnsemble", "buildClassifier", void.class, Instances.class);
+    private static final MethodHandle COMPILE =
+            Perceptrons.method("LinearPerceptronEnsemble", "compile", Perceptrons.type("CompiledEnsemble"), boolean.class);
+    private static final MethodHandle CLASSIFY_INSTANCE =
+            Perceptrons.method("LinearPerceptronEnsemble", "classifyInstance", double.class, Instance.class);
+    private static final MethodHandle CLASSIFY_BATCH =
+            Perceptrons.method("LinearPerceptronEnsemble", "classifyBatch", double[].class, Instances.class);
+
+    /** How the votes of the perceptrons are counted */
+    public enum Voting {
+        OBJECTS, COMPILED_DENSE, COMPILED_SPARSE
+    }
+
+    @Param({"OBJECTS", "COMPILED_DENSE", "COMPILED_SPARSE"})
+    public Voting voting;
+
+    @Param({"NARROW_DENSE", "WIDE_DENSE", "WIDE_SPARSE"})
+    public DataShape shape;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Instances data;
+    private Object ensemble;
+
+    @Setup(Level.Trial)
+    public void train() throws Throwable {
+        this.data = SyntheticData.generate(this.shape, this.rows, 1);
+        this.ensemble = Perceptrons.create("LinearPerceptronEnsemble");
+        BUILD.invokeExact(this.ensemble, new Instances(this.data, 0, Math.min(this.rows, TRAINING_ROWS)));
+        if (this.voting != Voting.OBJECTS){
+            COMPILE.invoke(this.ensemble, this.voting == Voting.COMPILED_SPARSE);
+        }
+    }
+
+    /** The position of the next row to classify, kept per thread */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double classifyInstance(Cursor cursor) throws Throwable {
+        Instance instance = this.data.instance(cursor.next);
+        cursor.next = cursor.next + 1 == this.rows ? 0 : cursor.next + 1;
+        return (double) CLASSIFY_INSTANCE.invokeExact(this.ensemble, instance);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double[] classifyBatch(RowCounter counter) throws Throwable {
+        double[] predictions = (double[]) CLASSIFY_BATCH.invokeExact(this.ensemble, this.data);
+        counter.rows += this.rows;
+        return predictions;
+    }
+
+}
@@ -0,0 +1,81 @@
+package perceptrons.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks of the single perceptrons once trained: the latency of classifying one instance, and the throughput
+ *  of scoring a whole dataset as a batch, in rows per second
+ *  The latency benchmark steps through the rows in turn, so it is not measuring one row kept hot in the cache.
+ */
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsPrepend = {"--add-modules", "jdk.incubator.vector", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class InferenceBenchmark {
+
+    private static final MethodHandle LINEAR_BATCH =
+            Perceptrons.method("LinearPerceptron", "classifyBatch", double[].class, Instances.class);
+    private static final MethodHandle ENHANCED_BATCH =
+            Perceptrons.method("EnhancedLinearPerceptron", "classifyBatch", double[].class, Instances.class);
+
+    @Param({"LINEAR", "ENHANCED"})
+    public Model model;
+
+    @Param({"NARROW_DENSE", "WIDE_DENSE", "WIDE_SPARSE"})
+    public DataShape shape;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Instances data;
+    private Classifier perceptron;
+    private MethodHandle classifyBatch;
+
+    @Setup(Level.Trial)
+    public void train() throws Exception {
+        this.data = SyntheticData.generate(this.shape, this.rows, 1);
+        this.perceptron = Perceptrons.classifier(this.model, TrainingBenchmark.EPOCHS);
+        this.perceptron.buildClassifier(this.data);
+        this.classifyBatch = this.model == Model.LINEAR ? LINEAR_BATCH : ENHANCED_BATCH;
+    }
+
+    /** The position of the next row to classify, kept per thread */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double classifyInstance(Cursor cursor) throws Exception {
+        Instance instance = this.data.instance(cursor.next);
+        cursor.next = cursor.next + 1 == this.rows ? 0 : cursor.next + 1;
+        return this.perceptron.classifyInstance(instance);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double[] classifyBatch(RowCounter counter) throws Throwable {
+        double[] predictions = (double[]) this.classifyBatch.invokeExact((Object) this.perceptron, this.data);
+        counter.rows += this.rows;
+        return predictions;
+    }
+
+}
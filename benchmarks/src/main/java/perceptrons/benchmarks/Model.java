@@ -0,0 +1,20 @@
+package perceptrons.benchmarks;
+
+/** The single perceptrons benchmarked, both of which implement the Weka Classifier interface */
+public enum Model {
+
+    LINEAR("LinearPerceptron"),
+    ENHANCED("EnhancedLinearPerceptron");
+
+    private final String className;
+
+    Model(String className){
+        this.className = className;
+    }
+
+    /** @return the simple name of the perceptron class, in the default package */
+    public String className(){
+        return this.className;
+    }
+
+}
@@ -0,0 +1,102 @@
+package perceptrons.benchmarks;
+
+import weka.classifiers.Classifier;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/** Class giving the benchmarks access to the perceptrons
+ *  The perceptrons live in the default package, which cannot be imported from a named package, and JMH does not
+ *  accept benchmarks in the default package. They are reached instead through the Weka Classifier interface where
+ *  one is implemented, and otherwise through method handles looked up by name once, when a benchmark class is loaded.
+ */
+final class Perceptrons {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private Perceptrons(){
+    }
+
+    /** Loads one of the perceptron classes from the default package
+     *
+     * @param name the simple name of the class
+     * @return the class
+     */
+    static Class<?> type(String name){
+        try {
+            return Class.forName(name);
+        }
+        catch (ClassNotFoundException e){
+            throw new IllegalStateException("The perceptrons are not on the class path: " + name, e);
+        }
+    }
+
+    /** Looks up a public instance method of a perceptron class, adapted to take the receiver as an Object
+     *
+     * @param className the simple name of the class
+     * @param methodName the name of the method
+     * @param returnType the return type of the method
+     * @param parameterTypes the parameter types of the method
+     * @return the method handle, of type (Object, parameterTypes...)returnType
+     */
+    static MethodHandle method(String className, String methodName, Class<?> returnType, Class<?>... parameterTypes){
+        try {
+            MethodHandle handle = LOOKUP.findVirtual(type(className), methodName, MethodType.methodType(returnType, parameterTypes));
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        }
+        catch (ReflectiveOperationException e){
+            throw new IllegalStateException("No method " + className + "." + methodName, e);
+        }
+    }
+
+    /** Creates an instance of a perceptron class with its no-argument constructor
+     *
+     * @param className the simple name of the class
+     * @return the new instance
+     */
+    static Object create(String className){
+        try {
+            return LOOKUP.findConstructor(type(className), MethodType.methodType(void.class)).invoke();
+        }
+        catch (Throwable e){
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    /** Creates a StoppingPolicy that runs training for a fixed number of epochs, however many errors are made, so
+     * every training run does the same amount of work
+     *
+     * @param epochs the number of epochs to train for
+     * @return the stopping policy
+     */
+    static Object fixedEpochs(int epochs){
+        Object policy = create("StoppingPolicy");
+        try {
+            method("StoppingPolicy", "setStopOnZeroErrors", void.class, boolean.class).invoke(policy, false);
+            method("StoppingPolicy", "setMaxEpochs", void.class, int.class).invoke(policy, epochs);
+        }
+        catch (Throwable e){
+            throw new IllegalStateException("Cannot configure the stopping policy", e);
+        }
+        return policy;
+    }
+
+    /** Creates a perceptron classifier that trains for a fixed number of epochs
+     *
+     * @param model the perceptron to create
+     * @param epochs the number of epochs to train for
+     * @return the untrained classifier
+     */
+    static Classifier classifier(Model model, int epochs){
+        Object classifier = create(model.className());
+        try {
+            method(model.className(), "setStoppingPolicy", void.class, type("StoppingPolicy"))
+                    .invoke(classifier, fixedEpochs(epochs));
+        }
+        catch (Throwable e){
+            throw new IllegalStateException("Cannot configure " + model.className(), e);
+        }
+        return (Classifier) classifier;
+    }
+
+}
@@ -0,0 +1,25 @@
+package perceptrons.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Counter of the rows a benchmark has trained on or scored, reported by JMH as a rate alongside the score, so
+ *  throughput is read as rows per second whatever the number of rows in a single benchmark invocation
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class RowCounter {
+
+    /** The number of rows processed in the current iteration */
+    public long rows;
+
+    /** Resets the count at the start of every iteration */
+    @Setup(Level.Iteration)
+    public void reset(){
+        this.rows = 0;
+    }
+
+}
@@ -0,0 +1,115 @@
+package perceptrons.benchmarks;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Class generating synthetic binary classification data for the benchmarks
+ *  The attribute values are standard normal, and the class of each row is the sign of its dot product with a
+ *  hidden random weight vector, flipped for a small fraction of the rows so the data is not linearly separable and
+ *  training runs for its full number of epochs. The class attribute is nominal {0, 1} and comes last.
+ *  The same seed always generates the same data, so every run of a benchmark sees identical rows.
+ */
+public final class SyntheticData {
+
+    /** The fraction of rows whose class is flipped */
+    private static final double LABEL_NOISE = 0.05;
+
+    private SyntheticData(){
+    }
+
+    /** Generates a dataset
+     *
+     * @param shape the shape of the data
+     * @param numRows the number of rows to generate
+     * @param seed the random seed
+     * @return the dataset, with its class index set
+     */
+    public static Instances generate(DataShape shape, int numRows, long seed){
+        int numAttributes = shape.numAttributes();
+        ArrayList<Attribute> attributes = new ArrayList<>(numAttributes + 1);
+        for (int attr = 0; attr < numAttributes; attr++){
+            attributes.add(new Attribute("a" + attr));
+        }
+        attributes.add(new Attribute("class", Arrays.asList("0", "1")));
+
+        Instances data = new Instances(shape.name().toLowerCase(), attributes, numRows);
+        data.setClassIndex(numAttributes);
+
+        Random rnd = new Random(seed);
+        double[] hidden = new double[numAttributes];
+        for (int attr = 0; attr < numAttributes; attr++){
+            hidden[attr] = rnd.nextGaussian();
+        }
+
+        for (int i = 0; i < numRows; i++){
+            if (shape.isSparse()){
+                data.add(sparseRow(hidden, shape.numNonZero(), rnd));
+            }
+            else {
+                data.add(denseRow(hidden, rnd));
+            }
+        }
+        return data;
+    }
+
+    /** Generates one dense row
+     *
+     * @param hidden the hidden weight vector deciding the class
+     * @param rnd the random number generator to draw from
+     * @return the row, with the class value last
+     */
+    private static DenseInstance denseRow(double[] hidden, Random rnd){
+        double[] values = new double[hidden.length + 1];
+        double sum = 0.0;
+        for (int attr = 0; attr < hidden.length; attr++){
+            values[attr] = rnd.nextGaussian();
+            sum += hidden[attr]*values[attr];
+        }
+        values[hidden.length] = classValue(sum, rnd);
+        return new DenseInstance(1.0, values);
+    }
+
+    /** Generates one sparse row, with its non-zero values at distinct random attributes
+     *
+     * @param hidden the hidden weight vector deciding the class
+     * @param numNonZero the number of non-zero attribute values
+     * @param rnd the random number generator to draw from
+     * @return the row, with the class value stored last when it is non-zero
+     */
+    private static SparseInstance sparseRow(double[] hidden, int numNonZero, Random rnd){
+        int[] indices = rnd.ints(0, hidden.length).distinct().limit(numNonZero).sorted().toArray();
+        double[] values = new double[numNonZero + 1];
+        double sum = 0.0;
+        for (int k = 0; k < numNonZero; k++){
+            values[k] = rnd.nextGaussian();
+            sum += hidden[indices[k]]*values[k];
+        }
+
+        double classValue = classValue(sum, rnd);
+        if (classValue == 0.0){
+            return new SparseInstance(1.0, Arrays.copyOf(values, numNonZero), indices, hidden.length + 1);
+        }
+        int[] withClass = Arrays.copyOf(indices, numNonZero + 1);
+        withClass[numNonZero] = hidden.length;
+        values[numNonZero] = classValue;
+        return new SparseInstance(1.0, values, withClass, hidden.length + 1);
+    }
+
+    /** @param sum the dot product of the row with the hidden weight vector
+     *  @param rnd the random number generator to draw from
+     *  @return the class value of the row, 1 for a positive sum unless flipped by the label noise
+     */
+    private static double classValue(double sum, Random rnd){
+        double classValue = sum > 0.0 ? 1 : 0;
+        if (rnd.nextDouble() < LABEL_NOISE){
+            classValue = 1 - classValue;
+        }
+        return classValue;
+    }
+
+}
@@ -0,0 +1,81 @@
+package perceptrons.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks of training throughput
+ *  Every run trains for a fixed number of epochs, with the zero-error stop turned off, so each invocation does the
+ *  same work and the rows counter, rows times epochs, reads as training rows per second per epoch.
+ *  An invocation covers a whole build, so the score includes the snapshot of the data and its standardisation,
+ *  which are paid once per build rather than once per epoch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsPrepend = {"--add-modules", "jdk.incubator.vector", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class TrainingBenchmark {
+
+    /** The number of epochs each training run is held to */
+    static final int EPOCHS = 5;
+
+    private static final MethodHandle GRADIENT_DESCENT_TRAINING =
+            Perceptrons.method("EnhancedLinearPerceptron", "gradientDescentTraining", double[].class, Instances.class);
+
+    @Param({"NARROW_DENSE", "WIDE_DENSE", "WIDE_SPARSE"})
+    public DataShape shape;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Instances data;
+
+    @Setup(Level.Trial)
+    public void generate(){
+        this.data = SyntheticData.generate(this.shape, this.rows, 1);
+    }
+
+    /** LinearPerceptron's on-line rule, on a dense snapshot or a sparse one for sparse data */
+    @Benchmark
+    public Classifier linearPerceptron(RowCounter counter) throws Exception {
+        return build(Model.LINEAR, counter);
+    }
+
+    /** EnhancedLinearPerceptron's default build: standardisation followed by the on-line rule */
+    @Benchmark
+    public Classifier enhancedOnline(RowCounter counter) throws Exception {
+        return build(Model.ENHANCED, counter);
+    }
+
+    /** EnhancedLinearPerceptron's off-line rule, through gradientDescentTraining on the raw data */
+    @Benchmark
+    public double[] enhancedOffline(RowCounter counter) throws Throwable {
+        Classifier perceptron = Perceptrons.classifier(Model.ENHANCED, EPOCHS);
+        double[] model = (double[]) GRADIENT_DESCENT_TRAINING.invokeExact((Object) perceptron, this.data);
+        counter.rows += (long) this.rows*EPOCHS;
+        return model;
+    }
+
+    private Classifier build(Model model, RowCounter counter) throws Exception {
+        Classifier perceptron = Perceptrons.classifier(model, EPOCHS);
+        perceptron.buildClassifier(this.data);
+        counter.rows += (long) this.rows*EPOCHS;
+        return perceptron;
+    }
+
+}
@@ -0,0 +1,72 @@
+import org.junit.jupiter.api.Test;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Checks the on-line training of LinearPerceptron on Weka data, whose nominal classes are stored as 0 and 1 */
+public class LinearPerceptronTest {
+
+    private static final int ROWS = 1000;
+    private static final int ATTRIBUTES = 10;
+    private static final int MAX_ITERATIONS = 1000;
+
+    @Test
+    public void separableDataStopsEarly() throws Exception {
+        int[] lastEpoch = new int[2];
+        LinearPerceptron perceptron = new LinearPerceptron();
+        perceptron.setEpochListener((epoch, errors, weightNorm, epochNanos) -> {
+            lastEpoch[0] = epoch;
+            lastEpoch[1] = errors;
+        });
+        perceptron.buildClassifier(separable(ROWS, 1));
+
+        assertTrue(lastEpoch[0] < MAX_ITERATIONS, "stopped after " + lastEpoch[0] + " epochs");
+        assertEquals(0, lastEpoch[1]);
+    }
+
+    /** Generates rows of standard normal attributes with a nominal class of 0 or 1, decided by the side of a hidden
+     * hyperplane through the origin each row falls on. Rows close to the hyperplane are dropped, leaving a margin
+     * the on-line rule converges within in a few epochs.
+     *
+     * @param numRows the number of rows
+     * @param seed the seed of the rows, the hidden model always being the same
+     * @return the dataset, with the class as the last attribute
+     */
+    private static Instances separable(int numRows, long seed){
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int j = 0; j < ATTRIBUTES; j++){
+            attributes.add(new Attribute("a" + j));
+        }
+        attributes.add(new Attribute("class", Arrays.asList("0", "1")));
+        Instances data = new Instances("separable", attributes, numRows);
+        data.setClassIndex(ATTRIBUTES);
+
+        Random hidden = new Random(42);
+        double[] model = new double[ATTRIBUTES];
+        for (int j = 0; j < ATTRIBUTES; j++){
+            model[j] = hidden.nextGaussian();
+        }
+        Random rnd = new Random(seed);
+        while (data.numInstances() < numRows){
+            double[] values = new double[ATTRIBUTES + 1];
+            double sum = 0.0;
+            for (int j = 0; j < ATTRIBUTES; j++){
+                values[j] = rnd.nextGaussian();
+                sum += model[j]*values[j];
+            }
+            if (Math.abs(sum) < 0.5){
+                continue;
+            }
+            values[ATTRIBUTES] = sum > 0.0 ? 1 : 0;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+}
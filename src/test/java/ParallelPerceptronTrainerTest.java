@@ -0,0 +1,250 @@
+import org.junit.jupiter.api.Test;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Checks that training on several threads gives an accuracy close to the single threaded trainers, on seeded
+ *  synthetic data whose class, 0 or 1, is decided by a hidden linear model. The on-line rule trains the classes
+ *  towards -1 and +1 and converges on linearly separable data, so the accuracy compared is that of the models the
+ *  trainers converge towards rather than of wherever the last epoch happened to stop.
+ *  The class column of each row is left zero, so the class is only read from the label vector.
+ *  LinearPerceptron is also built on several threads from Weka data with a nominal class, checking that every mode
+ *  reaches an epoch with no errors on separable data through the path the classifier takes.
+ */
+public class ParallelPerceptronTrainerTest {
+
+    private static final int TRAIN_ROWS = 20000;
+    private static final int TEST_ROWS = 2000;
+    private static final int THREADS = 4;
+    private static final int EPOCHS = 20;
+    private static final double TOLERANCE = 0.02;
+    private static final int MAX_ITERATIONS = 1000;
+
+    @Test
+    public void denseModesMatchSingleThread(){
+        DenseInstances train = dense(TRAIN_ROWS, 20, 1);
+        DenseInstances test = dense(TEST_ROWS, 20, 2);
+
+        double expected = accuracy(trainer(ParallelPerceptronTrainer.Mode.HOGWILD, 1).train(train, weights(train.numColumns())), test);
+        for (ParallelPerceptronTrainer.Mode mode : ParallelPerceptronTrainer.Mode.values()){
+            double[] model = trainer(mode, THREADS).train(train, weights(train.numColumns()));
+            assertEquals(expected, accuracy(model, test), TOLERANCE, mode.name());
+        }
+    }
+
+    @Test
+    public void sparseModesMatchSingleThread(){
+        SparseInstances train = sparse(TRAIN_ROWS, 200, 10, 1);
+        SparseInstances test = sparse(TEST_ROWS, 200, 10, 2);
+
+        SparsePerceptronTrainer sequential = new SparsePerceptronTrainer();
+        sequential.setMaxIterations(EPOCHS);
+        double expected = accuracy(sequential.trainOnline(train, null, weights(train.numColumns())), test);
+        for (ParallelPerceptronTrainer.Mode mode : ParallelPerceptronTrainer.Mode.values()){
+            double[] model = trainer(mode, THREADS).train(train, weights(train.numColumns()));
+            assertEquals(expected, accuracy(model, test), TOLERANCE, mode.name());
+        }
+    }
+
+    @Test
+    public void linearPerceptronConvergesOnNominalClasses() throws Exception {
+        Instances train = nominal(TRAIN_ROWS, 20, 1);
+
+        for (ParallelPerceptronTrainer.Mode mode : ParallelPerceptronTrainer.Mode.values()){
+            int[] lastEpoch = new int[2];
+            LinearPerceptron perceptron = new LinearPerceptron();
+            perceptron.setNumThreads(THREADS);
+            perceptron.setParallelMode(mode);
+            perceptron.setEpochListener((epoch, errors, weightNorm, epochNanos) -> {
+                lastEpoch[0] = epoch;
+                lastEpoch[1] = errors;
+            });
+            perceptron.buildClassifier(train);
+
+            assertTrue(lastEpoch[0] < MAX_ITERATIONS, mode.name() + " stopped after " + lastEpoch[0] + " epochs");
+            assertEquals(0, lastEpoch[1]);
+        }
+    }
+
+    @Test
+    public void stripedAndAveragingAreReproducible(){
+        DenseInstances train = dense(TRAIN_ROWS, 20, 1);
+        SparseInstances sparseTrain = sparse(TRAIN_ROWS, 200, 10, 1);
+
+        for (ParallelPerceptronTrainer.Mode mode : new ParallelPerceptronTrainer.Mode[]{
+                ParallelPerceptronTrainer.Mode.STRIPED, ParallelPerceptronTrainer.Mode.AVERAGING}){
+            assertArrayEquals(trainer(mode, THREADS).train(train, weights(train.numColumns())),
+                    trainer(mode, THREADS).train(train, weights(train.numColumns())));
+            assertArrayEquals(trainer(mode, THREADS).train(sparseTrain, weights(sparseTrain.numColumns())),
+                    trainer(mode, THREADS).train(sparseTrain, weights(sparseTrain.numColumns())));
+        }
+    }
+
+    /** @param mode how the threads share the weight vector
+     *  @param numThreads the number of threads
+     *  @return a trainer running a fixed number of epochs
+     */
+    private static ParallelPerceptronTrainer trainer(ParallelPerceptronTrainer.Mode mode, int numThreads){
+        ParallelPerceptronTrainer trainer = new ParallelPerceptronTrainer();
+        trainer.setMode(mode);
+        trainer.setNumThreads(numThreads);
+        trainer.setMaxIterations(EPOCHS);
+        return trainer;
+    }
+
+    /** @param numColumns the number of values in each row
+     *  @return the initial weight vector LinearPerceptron generates from its default seed
+     */
+    private static double[] weights(int numColumns){
+        double[] weightVector = new double[numColumns + 1];
+        Random rnd = new Random(1);
+        for (int i = 0; i < numColumns; i++){
+            weightVector[i] = rnd.nextDouble();
+        }
+        return weightVector;
+    }
+
+    /** Generates dense rows of standard normal attributes, with a zero class column
+     *
+     * @param numRows the number of rows
+     * @param numAttributes the number of non-class attributes
+     * @param seed the seed of the rows, the hidden model always being the same
+     * @return the dataset
+     */
+    private static DenseInstances dense(int numRows, int numAttributes, long seed){
+        double[] hidden = hiddenModel(numAttributes);
+        int numColumns = numAttributes + 1;
+        double[] values = new double[numRows*numColumns];
+        double[] classValues = new double[numRows];
+        Random rnd = new Random(seed);
+        for (int i = 0; i < numRows; i++){
+            double sum = 0.0;
+            for (int j = 0; j < numAttributes; j++){
+                values[i*numColumns + j] = rnd.nextGaussian();
+                sum += hidden[j]*values[i*numColumns + j];
+            }
+            classValues[i] = sum > 0.0 ? 1 : 0;
+        }
+        return new DenseInstances(values, classValues, numRows, numColumns);
+    }
+
+    /** Generates sparse rows holding a few standard normal attributes each, with a zero class column
+     *
+     * @param numRows the number of rows
+     * @param numAttributes the number of non-class attributes
+     * @param nonZero the number of non-zero attributes in each row
+     * @param seed the seed of the rows, the hidden model always being the same
+     * @return the dataset
+     */
+    private static SparseInstances sparse(int numRows, int numAttributes, int nonZero, long seed){
+        double[] hidden = hiddenModel(numAttributes);
+        int[] rowStarts = new int[numRows + 1];
+        int[] indices = new int[numRows*nonZero];
+        double[] values = new double[numRows*nonZero];
+        double[] classValues = new double[numRows];
+        Random rnd = new Random(seed);
+        int position = 0;
+        for (int i = 0; i < numRows; i++){
+            rowStarts[i] = position;
+            double sum = 0.0;
+            int stride = numAttributes/nonZero;
+            for (int k = 0; k < nonZero; k++){
+                indices[position] = k*stride + rnd.nextInt(stride);
+                values[position] = rnd.nextGaussian();
+                sum += hidden[indices[position]]*values[position];
+                position++;
+            }
+            classValues[i] = sum > 0.0 ? 1 : 0;
+        }
+        rowStarts[numRows] = position;
+        return new SparseInstances(rowStarts, indices, values, classValues, numRows, numAttributes + 1);
+    }
+
+    /** Generates Weka rows of standard normal attributes with a nominal class, stored by Weka as 0 or 1, decided by
+     * the hidden model. Rows close to its hyperplane are dropped, leaving a margin the on-line rule converges within.
+     *
+     * @param numRows the number of rows
+     * @param numAttributes the number of non-class attributes
+     * @param seed the seed of the rows, the hidden model always being the same
+     * @return the dataset, with the class as the last attribute
+     */
+    private static Instances nominal(int numRows, int numAttributes, long seed){
+        double[] hidden = hiddenModel(numAttributes);
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int j = 0; j < numAttributes; j++){
+            attributes.add(new Attribute("a" + j));
+        }
+        attributes.add(new Attribute("class", Arrays.asList("0", "1")));
+        Instances data = new Instances("nominal", attributes, numRows);
+        data.setClassIndex(numAttributes);
+        Random rnd = new Random(seed);
+        while (data.numInstances() < numRows){
+            double[] values = new double[numAttributes + 1];
+            double sum = 0.0;
+            for (int j = 0; j < numAttributes; j++){
+                values[j] = rnd.nextGaussian();
+                sum += hidden[j]*values[j];
+            }
+            if (Math.abs(sum) < 0.5){
+                continue;
+            }
+            values[numAttributes] = sum > 0.0 ? 1 : 0;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    /** @param numAttributes the number of attributes
+     *  @return the weights deciding the class of each row
+     */
+    private static double[] hiddenModel(int numAttributes){
+        double[] hidden = new double[numAttributes];
+        Random rnd = new Random(42);
+        for (int j = 0; j < numAttributes; j++){
+            hidden[j] = rnd.nextGaussian();
+        }
+        return hidden;
+    }
+
+    /** Scores a model by the sign of the weighted sum of each row, predicting class 1 if it is positive, as the
+     * on-line rule predicts while training
+     *
+     * @param model the weight vector
+     * @param data the test rows
+     * @return the proportion of rows classified correctly
+     */
+    private static double accuracy(double[] model, DenseInstances data){
+        int correct = 0;
+        for (int i = 0; i < data.numRows(); i++){
+            double sum = VectorOps.dot(model, 0, data.values(), data.offset(i), data.numColumns());
+            if ((sum > 0.0 ? 1 : 0) == data.classValues()[i]){
+                correct++;
+            }
+        }
+        return (double) correct/data.numRows();
+    }
+
+    /** Scores a model on sparse rows, see accuracy(double[], DenseInstances)
+     *
+     * @param model the weight vector
+     * @param data the test rows
+     * @return the proportion of rows classified correctly
+     */
+    private static double accuracy(double[] model, SparseInstances data){
+        int correct = 0;
+        for (int i = 0; i < data.numRows(); i++){
+            if ((data.dot(i, model) > 0.0 ? 1 : 0) == data.classValues()[i]){
+                correct++;
+            }
+        }
+        return (double) correct/data.numRows();
+    }
+
+}
@@ -0,0 +1,123 @@
+import org.junit.jupiter.api.Test;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.converters.ArffSaver;
+import weka.core.converters.ConverterUtils.DataSource;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Checks that streaming an ARFF file trains the same model as loading the file into memory, on seeded synthetic
+ *  data with a nominal class decided by a hidden linear model. The in-memory model is trained on the rows read back
+ *  from the file, so both see the values as the file stores them.
+ */
+public class StreamingPerceptronTrainerTest {
+
+    private static final int TRAIN_ROWS = 3000;
+    private static final int TEST_ROWS = 500;
+    private static final int ATTRIBUTES = 10;
+
+    @Test
+    public void everyPassReadsTheWholeFile() throws Exception {
+        File file = write(data(TRAIN_ROWS, 1));
+        try {
+            StreamingPerceptronTrainer trainer = new StreamingPerceptronTrainer();
+            trainer.setMaxIterations(3);
+            trainer.train(file);
+            assertEquals(TRAIN_ROWS, trainer.getNumRows());
+        }
+        finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test
+    public void streamedModelMatchesInMemory() throws Exception {
+        File file = write(data(TRAIN_ROWS, 1));
+        try {
+            Instances loaded = DataSource.read(file.getPath());
+            loaded.setClassIndex(loaded.numAttributes() - 1);
+            EnhancedLinearPerceptron inMemory = new EnhancedLinearPerceptron();
+            inMemory.setSeed(3);
+            inMemory.buildClassifier(loaded);
+
+            EnhancedLinearPerceptron streamed = new EnhancedLinearPerceptron();
+            streamed.setSeed(3);
+            streamed.buildClassifier(file);
+
+            Instances test = data(TEST_ROWS, 2);
+            assertArrayEquals(scores(inMemory, test), scores(streamed, test));
+        }
+        finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    /** Generates rows of standard normal attributes with a nominal class of 0 or 1
+     *
+     * @param numRows the number of rows
+     * @param seed the seed of the rows, the hidden model always being the same
+     * @return the dataset, with the class as the last attribute
+     */
+    private static Instances data(int numRows, long seed){
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int j = 0; j < ATTRIBUTES; j++){
+            attributes.add(new Attribute("a" + j));
+        }
+        attributes.add(new Attribute("class", Arrays.asList("0", "1")));
+        Instances data = new Instances("synthetic", attributes, numRows);
+        data.setClassIndex(ATTRIBUTES);
+
+        Random hidden = new Random(42);
+        double[] model = new double[ATTRIBUTES];
+        for (int j = 0; j < ATTRIBUTES; j++){
+            model[j] = hidden.nextGaussian();
+        }
+        Random rnd = new Random(seed);
+        for (int i = 0; i < numRows; i++){
+            double[] values = new double[ATTRIBUTES + 1];
+            double sum = 0.0;
+            for (int j = 0; j < ATTRIBUTES; j++){
+                values[j] = rnd.nextGaussian();
+                sum += model[j]*values[j];
+            }
+            values[ATTRIBUTES] = sum > 0.0 ? 1 : 0;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    /** @param data the rows to save
+     *  @return a temporary ARFF file holding the rows, to be deleted by the caller
+     */
+    private static File write(Instances data) throws Exception {
+        File file = File.createTempFile("streaming", ".arff");
+        ArffSaver saver = new ArffSaver();
+        saver.setInstances(data);
+        saver.setFile(file);
+        saver.writeBatch();
+        return file;
+    }
+
+    /** @param classifier the trained classifier
+     *  @param data the rows to score
+     *  @return the score of every row
+     */
+    private static double[] scores(EnhancedLinearPerceptron classifier, Instances data){
+        int numColumns = data.numAttributes();
+        double[] rows = new double[data.numInstances()*numColumns];
+        for (int i = 0; i < data.numInstances(); i++){
+            System.arraycopy(data.instance(i).toDoubleArray(), 0, rows, i*numColumns, numColumns);
+        }
+        double[] out = new double[data.numInstances()];
+        classifier.scoreBatch(rows, 0, data.numInstances(), numColumns, out);
+        return out;
+    }
+
+}